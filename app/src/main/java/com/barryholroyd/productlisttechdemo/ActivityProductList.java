@@ -6,6 +6,7 @@ import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.Toolbar;
 
+import com.barryholroyd.productlisttechdemo.cache_memory.MemoryTrimmer;
 import com.barryholroyd.productlisttechdemo.config.SettingsManager;
 import com.barryholroyd.productlisttechdemo.product_info.GetProducts;
 import com.barryholroyd.productlisttechdemo.product_info.ProductInfo;
@@ -60,6 +61,7 @@ public class ActivityProductList extends ActivityPrintStates
 		PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
         Settings.init(this);
         SettingsManager.init(this);
+        MemoryTrimmer.init(this);
 
 		// Appbar
 		Toolbar myToolbar =(Toolbar) findViewById(R.id.appbar);
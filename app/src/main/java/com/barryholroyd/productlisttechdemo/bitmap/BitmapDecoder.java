@@ -0,0 +1,228 @@
+package com.barryholroyd.productlisttechdemo.bitmap;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.barryholroyd.productlisttechdemo.config.Settings;
+import com.barryholroyd.productlisttechdemo.metrics.Metrics;
+import com.barryholroyd.productlisttechdemo.support.Support;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decode encoded images (e.g., jpeg or png file contents) into bitmaps.
+ * <p>
+ * Images are scaled down to the requested size while decoding and, when the bitmap
+ * pool has a suitable bitmap, decoded into it rather than into a newly allocated one.
+ * <p>
+ * How far images are scaled down, and to which pixel format, depends on the decode
+ * policy (see Settings.isDecodeCompact()):
+ * <ul>
+ *     <li>Standard: images are only scaled down by powers of two (see
+ *         calculateInSampleSize()), so they can be up to twice the requested size in
+ *         each dimension, and are decoded as ARGB_8888 (4 bytes per pixel).</li>
+ *     <li>Compact: images are scaled down to exactly the requested size, by the decoder
+ *         itself (inDensity/inTargetDensity), and JPEG images, which have no alpha
+ *         channel, are decoded as RGB_565 (2 bytes per pixel).</li>
+ * </ul>
+ * The bytes saved by the compact policy, compared with the standard one, are recorded
+ * in the metrics registry.
+ */
+public final class BitmapDecoder
+{
+    /** Largest scale factor worth applying exactly; closer to 1, the image is left alone. */
+    private static final float MAX_EXACT_SCALE = 0.9f;
+
+    /** Number of images decoded with the compact policy. */
+    private static final AtomicLong compactDecodes = Metrics.counter("decode.compact");
+
+    /** Bytes saved by the compact policy, over all the images decoded with it. */
+    private static final AtomicLong bytesSaved = Metrics.counter("decode.bytes_saved");
+
+    /** Static methods only. */
+    private BitmapDecoder() {}
+
+    /**
+     * Decode an encoded image.
+     * <p>
+     * If the decoder rejects the pooled bitmap, the image is decoded again without it.
+     *
+     * @param data            the encoded image.
+     * @param requestedHeight maximum height of the image (in pixels)
+     * @param requestedWidth  maximum width of the image (in pixels)
+     * @return the decoded bitmap, or null if the data could not be decoded.
+     */
+    public static Bitmap decode(byte[] data, int requestedHeight, int requestedWidth) {
+        return decode(data, data.length, requestedHeight, requestedWidth);
+    }
+
+    /**
+     * Decode an encoded image held at the start of a (possibly larger) buffer.
+     * <p>
+     * The bounds and the pixels are both decoded from the buffer, so it can be filled
+     * once (e.g., from the network) and reused for the next image.
+     *
+     * @param data            buffer holding the encoded image.
+     * @param length          length of the encoded image.
+     * @param requestedHeight maximum height of the image (in pixels)
+     * @param requestedWidth  maximum width of the image (in pixels)
+     * @return the decoded bitmap, or null if the data could not be decoded.
+     */
+    public static Bitmap decode(byte[] data, int length, int requestedHeight, int requestedWidth) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, length, opts);
+        if (opts.outHeight <= 0 || opts.outWidth <= 0) {
+            trace("Could not read image bounds.");
+            return null;
+        }
+        opts.inSampleSize = calculateInSampleSize(opts, requestedHeight, requestedWidth);
+        opts.inJustDecodeBounds = false;
+        boolean compact = Settings.isDecodeCompact();
+        if (compact) {
+            setCompactOptions(opts, requestedHeight, requestedWidth);
+        }
+        BitmapPool.instance.setInBitmap(opts);
+
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, 0, length, opts);
+        }
+        catch (IllegalArgumentException iae) {
+            trace("Pooled bitmap rejected; decoding without it.");
+            opts.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(data, 0, length, opts);
+        }
+
+        if (bitmap != null && compact) {
+            if (opts.inScaled) {
+                // Display it at its size in pixels, like any other (see setCompactOptions()).
+                bitmap.setDensity(Resources.getSystem().getDisplayMetrics().densityDpi);
+            }
+            recordSavings(opts, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Set the options for the compact decode policy, once the sample size is known.
+     * <p>
+     * Sampling leaves the image up to twice the requested size; the decoder scales it the
+     * rest of the way down, by the ratio of inTargetDensity to inDensity, so that its
+     * smaller side is exactly the requested size (as with sampling, the image still
+     * covers the requested dimensions). The decoder then marks the bitmap as having
+     * inTargetDensity, which the caller has to undo.
+     *
+     * @param opts            options containing the image's bounds and sample size.
+     * @param requestedHeight requested height in pixels.
+     * @param requestedWidth  requested width in pixels.
+     */
+    private static void setCompactOptions(
+            BitmapFactory.Options opts, int requestedHeight, int requestedWidth) {
+        if ("image/jpeg".equals(opts.outMimeType)) {
+            opts.inPreferredConfig = Bitmap.Config.RGB_565;
+        }
+
+        int sampledHeight = sampledSize(opts.outHeight, opts.inSampleSize);
+        int sampledWidth  = sampledSize(opts.outWidth, opts.inSampleSize);
+        float scaleHeight = (float) requestedHeight / sampledHeight;
+        float scaleWidth  = (float) requestedWidth / sampledWidth;
+        if (Math.max(scaleHeight, scaleWidth) > MAX_EXACT_SCALE) {
+            opts.inScaled = false;
+            return;
+        }
+        opts.inScaled = true;
+        if (scaleHeight >= scaleWidth) {
+            opts.inDensity = sampledHeight;
+            opts.inTargetDensity = requestedHeight;
+        }
+        else {
+            opts.inDensity = sampledWidth;
+            opts.inTargetDensity = requestedWidth;
+        }
+    }
+
+    /**
+     * Record the bytes saved by decoding an image with the compact policy, compared with
+     * the ARGB_8888 bitmap, at the same sample size, that the standard policy decodes.
+     *
+     * @param opts   the options the image was decoded with.
+     * @param bitmap the decoded bitmap.
+     */
+    private static void recordSavings(BitmapFactory.Options opts, Bitmap bitmap) {
+        long standard = 4L * sampledSize(opts.outHeight, opts.inSampleSize)
+                * sampledSize(opts.outWidth, opts.inSampleSize);
+        long saved = standard - bitmap.getByteCount();
+        compactDecodes.incrementAndGet();
+        bytesSaved.addAndGet(saved);
+        if (Settings.isAppTraceDetails()) {
+            trace(String.format(Locale.US,
+                    "  DETAILS: Compact decode %dx%d %s: %d bytes (%d saved)",
+                    bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig(),
+                    bitmap.getByteCount(), saved));
+        }
+    }
+
+    /**
+     * Get the size of one dimension of an image after sampling.
+     *
+     * @param size         the dimension's size before sampling.
+     * @param inSampleSize the sample size.
+     * @return the size after sampling.
+     */
+    private static int sampledSize(int size, int inSampleSize) {
+        int sample = Math.max(inSampleSize, 1);
+        return (size + sample - 1) / sample;
+    }
+
+    /**
+     * Calculate the scaling factor for an image to make it a small as possible while still
+     * fitting within the specified dimensions without losing any fidelity.
+     * <p>
+     * The algorithm is to iteratively divide each of the two dimensions in half until an
+     * appropriate size is reached (at either of them). The resulting dimensions must not
+     * be smaller than the specified dimensions, so the starting size is cut in half before
+     * beginning the calculations so that the algorithm doesn't overshoot and make the image
+     * too small.
+     *
+     * @param opts BitmapFactory.options containing the image's actual (pre-scaled)
+     *             height and width.
+     * @param requestedHeight requested height in pixels.
+     * @param requestedWidth requested width in pixels.
+     * @return the inSampleSize scaling factor to be passed to BitmapFactory.
+     */
+    public static int calculateInSampleSize(
+            BitmapFactory.Options opts, int requestedHeight, int requestedWidth) {
+        final int height = opts.outHeight;  // pre-scaled height of the image.
+        final int width  = opts.outWidth;   // pre-scaled width of the image.
+        int inSampleSize = 1;
+
+        // If the image potentially needs to be shrunk.
+        if (height > requestedHeight || width > requestedWidth) {
+            final int halfHeight = height / 2;
+            final int halfWidth = width / 2;
+
+            /*
+             * Calculate the largest inSampleSize value that is a power of two and keeps
+             * both height and width larger than the requested height and width.
+             */
+            while ((halfHeight / inSampleSize) >= requestedHeight &&
+                    (halfWidth / inSampleSize) >= requestedWidth) {
+                inSampleSize *= 2;
+            }
+        }
+
+        return inSampleSize;
+    }
+
+    /**
+     * Tracing method specific to image decoding.
+     *
+     * @param msg message to be logged.
+     */
+    private static void trace(String msg) {
+        Support.trc(Settings.isImageLoaderTrace(), "Decoder", msg);
+    }
+}
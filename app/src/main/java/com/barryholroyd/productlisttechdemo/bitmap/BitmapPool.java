@@ -0,0 +1,298 @@
+package com.barryholroyd.productlisttechdemo.bitmap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.barryholroyd.productlisttechdemo.config.Settings;
+import com.barryholroyd.productlisttechdemo.metrics.Metrics;
+import com.barryholroyd.productlisttechdemo.support.Support;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * Pool of bitmaps that are no longer cached and can be decoded into again.
+ * <p>
+ * Bitmaps evicted from the memory cache are put back here and handed out to the
+ * network and disk decoders through BitmapFactory.Options.inBitmap, so that scrolling
+ * doesn't allocate (and later garbage collect) a new bitmap for every image.
+ * <p>
+ * Pooled bitmaps are bucketed by allocation size. Since API 19, a bitmap can be
+ * reused for any decode whose result fits in its allocation, so a request is served
+ * from the smallest bucket that is large enough -- but not one so large that most of
+ * the reused memory would be wasted.
+ * <p>
+ * A bitmap evicted from the memory cache may still be on the screen, or on its way
+ * there from a worker thread. Decoding into it would change the image being displayed,
+ * so callers retain() bitmaps while they are in use and release() them afterwards;
+ * an evicted bitmap is only pooled once it is no longer retained. Retain counts are
+ * held weakly, so a bitmap whose ImageView simply goes away doesn't leak.
+ * <p>
+ * The pool's size is capped at {@link Settings#getBitmapPoolSizeBytes()}. Hit and miss
+ * counts show how many allocations were avoided.
+ */
+public final class BitmapPool
+{
+    /** Singleton. The pool is shared by all image caches and decoders. */
+    public static final BitmapPool instance = new BitmapPool();
+
+    /** Don't reuse a bitmap more than this many times larger than the one needed. */
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    /** Pooled bitmaps, bucketed by allocation size in bytes. */
+    private final TreeMap<Integer,LinkedList<Bitmap>> buckets = new TreeMap<>();
+
+    /** Pooled bitmaps, oldest first; used to trim the pool. */
+    private final ArrayDeque<Bitmap> order = new ArrayDeque<>();
+
+    /** Number of references (displays, in-flight loads) to each bitmap in use. */
+    private final WeakHashMap<Bitmap,Integer> retainCounts = new WeakHashMap<>();
+
+    /** Bitmaps that have been evicted but are still retained. */
+    private final Set<Bitmap> pending = Collections.newSetFromMap(new WeakHashMap<Bitmap,Boolean>());
+
+    /** Percentage of the configured size the pool may use; lowered under memory pressure. */
+    private int trimPercent = 100;
+
+    /** Current pool size in bytes. */
+    private long currentPoolSize = 0;
+
+    /** Number of decodes that reused a pooled bitmap. */
+    private long hits = 0;
+
+    /** Number of decodes that had to allocate a new bitmap. */
+    private long misses = 0;
+
+    /** Number of bitmaps dropped from the pool to stay within its size. */
+    private long evictions = 0;
+
+    /** Private constructor to prevent external instantiation. */
+    private BitmapPool() {
+        Metrics.register("bitmap_pool.hits", new Metrics.Gauge() {
+            public long value() { return getHits(); }
+        });
+        Metrics.register("bitmap_pool.misses", new Metrics.Gauge() {
+            public long value() { return getMisses(); }
+        });
+        Metrics.register("bitmap_pool.evictions", new Metrics.Gauge() {
+            public long value() { return getEvictions(); }
+        });
+        Metrics.register("bitmap_pool.bytes", new Metrics.Gauge() {
+            public long value() { return getCurrentPoolSize(); }
+        });
+    }
+
+    /**
+     * Note that a bitmap is in use (displayed or being delivered for display).
+     *
+     * @param bitmap the bitmap in use.
+     */
+    public synchronized void retain(Bitmap bitmap) {
+        if (bitmap == null)
+            return;
+        Integer count = retainCounts.get(bitmap);
+        retainCounts.put(bitmap, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Note that a use of a bitmap has ended. If it was evicted while in use,
+     * it goes into the pool now.
+     *
+     * @param bitmap the bitmap no longer in use.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null)
+            return;
+        Integer count = retainCounts.get(bitmap);
+        if (count == null)
+            return;
+        if (count > 1) {
+            retainCounts.put(bitmap, count - 1);
+            return;
+        }
+        retainCounts.remove(bitmap);
+        if (pending.remove(bitmap)) {
+            pool(bitmap);
+        }
+    }
+
+    /**
+     * Offer a bitmap that is no longer cached for reuse.
+     *
+     * @param bitmap the evicted bitmap.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled())
+            return;
+        if (retainCounts.containsKey(bitmap)) {
+            pending.add(bitmap);
+            return;
+        }
+        pool(bitmap);
+    }
+
+    /**
+     * If the pool holds a bitmap the decode described by opts can be written into,
+     * remove it from the pool and set it as opts.inBitmap.
+     * <p>
+     * opts must already contain the image's bounds (outWidth, outHeight) and the
+     * inSampleSize to be used. opts.inMutable is always set, so that the decoded
+     * bitmap can itself be pooled later.
+     *
+     * @param opts options for the upcoming decode.
+     */
+    public synchronized void setInBitmap(BitmapFactory.Options opts) {
+        opts.inMutable = true;
+        opts.inBitmap = null;
+        if (maxPoolSize() == 0)
+            return;
+
+        int sample = Math.max(opts.inSampleSize, 1);
+        int width  = (opts.outWidth  + sample - 1) / sample;
+        int height = (opts.outHeight + sample - 1) / sample;
+        int needed = width * height * bytesPerPixel(opts.inPreferredConfig);
+        if (needed <= 0)
+            return;
+
+        Map.Entry<Integer,LinkedList<Bitmap>> bucket = buckets.ceilingEntry(needed);
+        if (bucket == null || bucket.getKey() > (long) needed * MAX_SIZE_MULTIPLE) {
+            misses++;
+            trace(String.format(Locale.US, "Miss: %d bytes (hits=%d misses=%d)", needed, hits, misses));
+            return;
+        }
+
+        Bitmap bitmap = bucket.getValue().removeFirst();
+        if (bucket.getValue().isEmpty()) {
+            buckets.remove(bucket.getKey());
+        }
+        order.remove(bitmap);
+        currentPoolSize -= bucket.getKey();
+        hits++;
+        trace(String.format(Locale.US, "Hit: %d bytes for %d needed (hits=%d misses=%d)",
+                bucket.getKey(), needed, hits, misses));
+        opts.inBitmap = bitmap;
+    }
+
+    /**
+     * Shrink the pool to its configured size (e.g., after the size setting changed).
+     */
+    public synchronized void trimToSize() {
+        trimToSize(maxPoolSize());
+    }
+
+    /**
+     * Limit the pool to a percentage of its configured size (e.g., under memory
+     * pressure), dropping pooled bitmaps as needed. 100 restores the full size.
+     *
+     * @param percent percentage of the configured pool size to allow.
+     */
+    public synchronized void trim(int percent) {
+        trimPercent = Math.max(0, Math.min(percent, 100));
+        trace(String.format(Locale.US, "Trimming pool to %d%% (pool size=%d)",
+                trimPercent, currentPoolSize));
+        trimToSize(maxPoolSize());
+    }
+
+    /*
+     * Getters.
+     */
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+    public synchronized long getEvictions() { return evictions; }
+    public synchronized long getCurrentPoolSize() { return currentPoolSize; }
+
+    /**
+     * Add a bitmap to the pool and trim the pool to its configured size.
+     *
+     * @param bitmap a bitmap that is neither cached nor in use.
+     */
+    private void pool(Bitmap bitmap) {
+        long maxPoolSize = maxPoolSize();
+        int size = bitmap.getAllocationByteCount();
+        if (size > maxPoolSize)
+            return;
+
+        LinkedList<Bitmap> bucket = buckets.get(size);
+        if (bucket == null) {
+            bucket = new LinkedList<>();
+            buckets.put(size, bucket);
+        }
+        bucket.addLast(bitmap);
+        order.addLast(bitmap);
+        currentPoolSize += size;
+        trace(String.format(Locale.US, "Pooling: %d bytes (pool size=%d)", size, currentPoolSize));
+        trimToSize(maxPoolSize);
+    }
+
+    /**
+     * Drop the oldest pooled bitmaps until the pool is no larger than the specified size.
+     *
+     * @param maxPoolSize maximum size of the pool in bytes.
+     */
+    private void trimToSize(long maxPoolSize) {
+        while (currentPoolSize > maxPoolSize && !order.isEmpty()) {
+            Bitmap oldest = order.removeFirst();
+            int size = oldest.getAllocationByteCount();
+            LinkedList<Bitmap> bucket = buckets.get(size);
+            if (bucket != null) {
+                Iterator<Bitmap> it = bucket.iterator();
+                while (it.hasNext()) {
+                    if (it.next() == oldest) {
+                        it.remove();
+                        break;
+                    }
+                }
+                if (bucket.isEmpty()) {
+                    buckets.remove(size);
+                }
+            }
+            currentPoolSize -= size;
+            evictions++;
+        }
+    }
+
+    /**
+     * Current maximum pool size: the configured size, reduced under memory pressure.
+     *
+     * @return maximum pool size in bytes.
+     */
+    private long maxPoolSize() {
+        return Settings.getBitmapPoolSizeBytes() * trimPercent / 100;
+    }
+
+    /**
+     * Bytes used by each pixel of the specified configuration.
+     *
+     * @param config bitmap configuration; null means the BitmapFactory default (ARGB_8888).
+     * @return bytes per pixel.
+     */
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == null)
+            return 4;
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * Tracing method specific to the bitmap pool.
+     *
+     * @param msg message to be logged.
+     */
+    private static void trace(String msg) {
+        Support.trc(Settings.isMemoryCacheTrace(), "Bitmap Pool", msg);
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Bitmap allocation support: reuse of decoded bitmaps.
+ */
+package com.barryholroyd.productlisttechdemo.bitmap;
@@ -1,28 +1,61 @@
 package com.barryholroyd.productlisttechdemo.cache_disk;
 
 import android.app.Activity;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Environment;
+import android.os.Process;
 
 import com.barryholroyd.productlisttechdemo.config.Settings;
+import com.barryholroyd.productlisttechdemo.metrics.Histogram;
+import com.barryholroyd.productlisttechdemo.metrics.Metrics;
 import com.barryholroyd.productlisttechdemo.support.Support;
 import com.barryholroyd.productlisttechdemo.support.Toaster;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.barryholroyd.productlisttechdemo.support.Support.truncImageString;
 
 /**
  * Disk cache implementation.
  * <p>
+ * Images are stored exactly as they were downloaded (e.g., the original jpeg file), which
+ * is both much smaller than re-encoding the decoded bitmap as a png and cheaper to write.
+ * <p>
  * This is based, in part, on the DiskLruCache implementation in the Android source code base.
+ * <p>
+ * Images are written in the background by a write-behind queue (see DiskWriter), so
+ * loading an image never waits for the disk to store it.
+ * <p>
+ * Sizes are accounted exactly, using the size of each file once it has been written.
+ * Eviction is least recently used first and is controlled by two watermarks (percentages
+ * of the maximum size): each write always evicts exactly as much as is needed to stay within
+ * the maximum size and, once the cache grows past the high watermark, each batch of writes
+ * also evicts a bounded number of files towards the low watermark.
+ * <p>
+ * The images' bytes are kept by a storage engine (see DiskStore): either one file per
+ * image (FileStore) or images appended to a few large segment files (PackStore).
+ * <p>
+ * The index is recorded in a journal (see DiskJournal) as files are added, used and
+ * removed. Unless the cache is cleared at startup, the journal is replayed when the
+ * cache is created, so cached images survive restarts of the app. This happens on a
+ * background thread (see init()); until it is done, every lookup is a miss.
  *
  * @see <a href="https://android.googlesource.com/platform/libcore/+/jb-mr2-release/luni/src/main/java/libcore/io/DiskLruCache.java">
  *      DiskLruCache Implementation</a>
@@ -43,43 +76,108 @@ public final class CacheDiskImage
      * making the instance "volatile" -- that ensure that the instance is fully initialized
      * before becoming visible to any other threads.
      * <p>
-     * Synchronization occurs at a high level, via the get() and add() methods. As a result,
-     * accesses of lower level entities (such as getEntity(), icdHm and icdLl) do not have
-     * to be separately synchronized.
+     * Synchronization is fine-grained. The index (icdHm, icdLru and the sizes) is guarded
+     * by the instance's lock, which is only held for short updates and never while reading,
+     * writing or deleting image files, or writing the journal: the journal's lines are
+     * only buffered under the lock and are written by the disk writer (see flushJournal()).
+     * File writes and deletes are guarded by per-key locks (see keyLockFor()), so that
+     * operations on different images don't wait for each other.
      */
     static volatile private CacheDiskImage instance;
 
-    /** Base name for image files. */
-    static final private String FILENAME_BASE = "image";
+    /** Length of a name's hash (SHA-1, in hex). */
+    static final int HASH_LENGTH = 40;
+
+    /** Number of names tried for a url when its hash collides with other urls'. */
+    static final private int MAX_NAME_PROBES = 4;
+
+    /** Character set of the urls stored with the images. */
+    static final private Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Number of per-key locks (a power of two). */
+    static final private int KEY_LOCK_STRIPES = 32;
+
+    /** Per-key locks, held while an image's file is written or deleted. */
+    private final ReentrantLock[] keyLocks = new ReentrantLock[KEY_LOCK_STRIPES];
+
+    /**
+     * Storage engine holding the images' bytes; selected by Settings.isDiskCachePack().
+     * Set by init(), before ready is set.
+     */
+    private DiskStore store = null;
+
+    /**
+     * True once init() has set up the cache directory, the store and the index.
+     * Until then, images aren't added, and lookups are served from the store alone
+     * (see getUnindexed()).
+     */
+    private volatile boolean ready = false;
+
+    /**
+     * True once init() has opened the store, before the index is restored from the
+     * journal. Until then, lookups are misses.
+     */
+    private volatile boolean storeReady = false;
+
+    /** Images found by getUnindexed() before the cache was ready, to be indexed. */
+    private final ConcurrentLinkedQueue<Found> earlyHits = new ConcurrentLinkedQueue<>();
+
+    /** Suffix of a cleared cache directory that is being deleted in the background. */
+    static final private String TRASH_SUFFIX = ".trash-";
+
+    /** Time from makeInstance() to the cache being ready. */
+    private static final Histogram latencyInit = Metrics.histogram("startup.disk_cache");
+
+    /** Writes added images to disk in the background. */
+    private final DiskWriter writer = new DiskWriter(this);
 
     /**
      * Internal key/value mapping for cache storage.
-     * This does not have to be synchronized since all accesses of it
-     * come from within synchronized methods (get() and add()).
+     * Guarded by the instance's lock.
      */
     private final HashMap<String,Entry> icdHm  = new HashMap<>();
 
+    /** All entries, by name; used to detect name collisions. Guarded by the instance's lock. */
+    private final HashMap<String,Entry> byName  = new HashMap<>();
+
     /**
-     * First in / first out tracking for deleting cache entries.
-     * This does not have to be synchronized since all accesses of it
-     * come from within add(), which is already synchronized.
+     * Entries whose images are stored, in least recently used order (access-ordered),
+     * for deleting cache entries. Guarded by the instance's lock.
      */
-    private final LinkedList<String> icdLl = new LinkedList<>();
+    private final LinkedHashMap<String,Entry> icdLru = new LinkedHashMap<>(16, 0.75f, true);
 
     /** Full file name for the cache subdirectory. */
     private final String cacheDirName;
 
-    /** Maximum sizeBitmap of the cache in bytes. */
+    /** Journal of the index, replayed at startup. */
+    private final DiskJournal journal;
+
+    /** Maximum size of the cache in bytes. */
     private long maxCacheSize = 0;
 
-    /** Current sizeBitmap (bytes used) of the disk cache. */
+    /** Current size (bytes used) of the disk cache. */
     private long currentCacheSize = 0;
 
-    /**
-     * When we need to make room in the cache, we'll make enough for at least this many
-     * additional images the size of the one being added.
-     */
-    static final private int IMAGE_SIZE_MULTIPLIER = 10;
+    /** Largest size (bytes used) the disk cache has reached. */
+    private long peakCacheSize = 0;
+
+    /** Past this percentage of the maximum size, eviction works ahead in batches. */
+    private int highWatermark = 100;
+
+    /** Batched eviction stops at this percentage of the maximum size. */
+    private int lowWatermark = 100;
+
+    /** Maximum number of files deleted per batch of writes when working towards the low watermark. */
+    static final private int EVICTION_BATCH_SIZE = 8;
+
+    /** Number of lookups that found the image. */
+    private long hits = 0;
+
+    /** Number of lookups that didn't find the image. */
+    private long misses = 0;
+
+    /** Number of files deleted to make room. */
+    private long evictions = 0;
 
     /**
      * Constructor.
@@ -87,6 +185,9 @@ public final class CacheDiskImage
      * We pass in the subdirectory name so that different apps can provide different
      * cache subdirectories. Synchronization isn't necessary since this is only called
      * from a synchronized block within makeInstance().
+     * <p>
+     * Only the cache directory's name is determined here; the directory itself is set up
+     * in the background by init(), since that reads (or deletes) the whole cache.
      *
      * @param a   standard Activity instance.
      * @param cacheSubdirName  subdirectory name for the cache -- unique to this app/usage.
@@ -94,17 +195,39 @@ public final class CacheDiskImage
     private CacheDiskImage(Activity a, String cacheSubdirName, long _maxCacheSize) {
         maxCacheSize = _maxCacheSize;
         trace(String.format(Locale.US, "Setting maximum disk cache size: %d", maxCacheSize));
+        for (int i = 0; i < keyLocks.length; i++) {
+            keyLocks[i] = new ReentrantLock();
+        }
+        highWatermark = Settings.getCacheHighWatermark();
+        lowWatermark = Math.min(Settings.getCacheLowWatermark(), highWatermark);
         cacheDirName = getDiskCacheDirName(a, cacheSubdirName);
+        registerMetrics();
+        journal = new DiskJournal(new File(cacheDirName));
+    }
+
+    /**
+     * Set up the cache directory, the store and the index, then start writing images.
+     * Runs on its own background thread, started by makeInstance().
+     * <p>
+     * A cache being cleared is renamed aside and deleted after the new, empty cache is
+     * ready, so clearing a large cache doesn't delay it. Directories left aside by earlier
+     * runs (e.g., if the app was killed while deleting one) are deleted too.
+     *
+     * @param startNanos System.nanoTime() when makeInstance() was called.
+     */
+    private void init(long startNanos) {
         /* File handle for the disk cache subdirectory. */
         File cacheDir = new File(cacheDirName);
+        File trash = null;
         if (cacheDir.exists()) {
             if (Settings.isDiskCacheClear()) {
-                trace(String.format("Deleting cache directory: %s", cacheDirName));
-                for (File f : cacheDir.listFiles()) {
-                    trace(String.format("  Deleting: %s", f.getName()));
-                    deleteFile(f);
+                trash = new File(cacheDirName + TRASH_SUFFIX + System.currentTimeMillis());
+                trace(String.format("Clearing cache directory: %s", cacheDirName));
+                if (!cacheDir.renameTo(trash)) {
+                    trace("Could not rename the cache directory; deleting it now.");
+                    deleteTree(cacheDir);
+                    trash = null;
                 }
-                deleteFile(cacheDir);
             }
             else {
                 trace(String.format("Retaining cache directory: %s", cacheDirName));
@@ -113,13 +236,323 @@ public final class CacheDiskImage
                             String.format("Disk cache exists but is not a directory: %s",
                                     cacheDirName));
                 }
-                return;
             }
         }
-        trace(String.format("Creating cache directory: %s", cacheDirName));
-        if (!cacheDir.mkdirs()) {
-            throw new CacheDiskImageException("Could not create disk cache directory.");
+        if (!cacheDir.exists()) {
+            trace(String.format("Creating cache directory: %s", cacheDirName));
+            if (!cacheDir.mkdirs()) {
+                throw new CacheDiskImageException("Could not create disk cache directory.");
+            }
+            store = makeStore(cacheDir);
+            storeReady = true;
+            journal.rebuild(new ArrayList<DiskJournal.Record>());
+        }
+        else {
+            store = makeStore(cacheDir);
+            storeReady = true;
+            readJournal();
+        }
+
+        ready = true;
+        // Images found after readJournal() indexed the early hits.
+        Found found;
+        while ((found = earlyHits.poll()) != null) {
+            adoptLater(found.url, found.size);
+        }
+        writer.start();
+        latencyInit.recordSince(startNanos);
+        trace(String.format(Locale.US, "Disk cache ready: %d ms.",
+                (System.nanoTime() - startNanos) / 1000000));
+
+        deleteTrash(cacheDir, trash);
+    }
+
+    /**
+     * Delete cleared cache directories that were renamed aside.
+     *
+     * @param cacheDir the cache directory.
+     * @param trash    the directory cleared by this run; null if none.
+     */
+    private static void deleteTrash(File cacheDir, File trash) {
+        if (trash != null) {
+            deleteTree(trash);
+        }
+        File[] leftovers = cacheDir.getParentFile().listFiles();
+        if (leftovers == null)
+            return;
+        String prefix = cacheDir.getName() + TRASH_SUFFIX;
+        for (File f : leftovers) {
+            if (f.getName().startsWith(prefix)) {
+                trace(String.format("Deleting leftover directory: %s", f.getName()));
+                deleteTree(f);
+            }
+        }
+    }
+
+    /**
+     * Create the storage engine selected in the settings.
+     *
+     * @param cacheDir the cache directory (which must exist).
+     * @return the storage engine.
+     */
+    private static DiskStore makeStore(File cacheDir) {
+        if (Settings.isDiskCachePack()) {
+            trace("Storage engine: pack files.");
+            return new PackStore(cacheDir);
+        }
+        trace("Storage engine: one file per image.");
+        return new FileStore(cacheDir);
+    }
+
+    /**
+     * Rebuild the index from the journal. Called from init(), before the cache is
+     * ready, so nothing else uses the index yet (lookups meanwhile only read the store;
+     * see getUnindexed()).
+     * <p>
+     * Entries whose image is missing or has the wrong size are dropped. Images found by
+     * lookups meanwhile are added as the most recently used, and other images the journal
+     * doesn't know about (e.g., a write interrupted by a crash) are deleted from the
+     * store. The journal is then rewritten in compact form.
+     */
+    private void readJournal() {
+        // Cached files by name, least recently used first.
+        final LinkedHashMap<String,DiskJournal.Record> records =
+                new LinkedHashMap<>(16, 0.75f, true);
+        boolean replayed = journal.replay(new DiskJournal.Replay() {
+            public void add(DiskJournal.Record record) {
+                records.remove(record.name);
+                records.put(record.name, record);
+            }
+            public void read(String name) {
+                records.get(name);
+            }
+            public void remove(String name) {
+                records.remove(name);
+            }
+        });
+        if (!replayed) {
+            records.clear();
+        }
+
+        for (DiskJournal.Record record : records.values()) {
+            if (!isValidName(record.name) || store.size(record.name) != record.size) {
+                trace(String.format("Dropping journal entry: %s", record.name));
+                continue;
+            }
+            Entry stale = icdHm.get(record.url);
+            if (stale != null) {
+                // Shouldn't happen; keep the most recently used copy.
+                icdLru.remove(stale.url);
+                byName.remove(stale.shortName);
+                currentCacheSize -= stale.getSizeFile();
+            }
+            Entry entry = new Entry(record.url, record.name);
+            entry.setSizeFile(record.size);
+            entry.setStored(true);
+            icdLru.put(entry.url, entry);
+            currentCacheSize += record.size;
+        }
+        indexEarlyHits();
+        peakCacheSize = currentCacheSize;
+
+        // Delete images that aren't in the index.
+        Set<String> known = new HashSet<>();
+        for (Entry entry : icdLru.values()) {
+            known.add(entry.shortName);
+        }
+        store.retainOnly(known);
+
+        trace(String.format(Locale.US, "Restored %d entries (%d bytes) from the journal.",
+                icdLru.size(), currentCacheSize));
+        journal.clearPending();
+        journal.rebuild(records());
+
+        // The maximum size may have been lowered since the last run.
+        deleteEvicted(evict(maxCacheSize, Integer.MAX_VALUE));
+        journal.flush();
+    }
+
+    /**
+     * Add the images found by lookups while the journal was being replayed to the index,
+     * as the most recently used, unless the journal already had them. Called from
+     * readJournal().
+     */
+    private void indexEarlyHits() {
+        Found found;
+        while ((found = earlyHits.poll()) != null) {
+            if (icdHm.containsKey(found.url) || byName.containsKey(found.name)
+                    || store.size(found.name) != found.size)
+                continue;
+            trace(String.format("Indexing image found during startup [file=%s]: %s",
+                    found.name, found.url));
+            Entry entry = new Entry(found.url, found.name);
+            entry.setSizeFile(found.size);
+            entry.setStored(true);
+            icdLru.put(entry.url, entry);
+            currentCacheSize += found.size;
+        }
+    }
+
+    /**
+     * Get the canonical form of a url, so that different spellings of the same url
+     * share one cache entry: the scheme and host are lower-cased, the default port
+     * and the fragment are dropped and the path is normalized ("a/./b/../c" is "a/c").
+     *
+     * @param url the url.
+     * @return the canonical url; the url itself if it can't be parsed.
+     */
+    public static String canonicalUrl(String url) {
+        URI uri;
+        try {
+            uri = new URI(url).normalize();
+        }
+        catch (URISyntaxException use) {
+            return url;
+        }
+        String scheme = uri.getScheme();
+        String host = uri.getHost();
+        if (scheme == null || host == null)
+            return url;
+        scheme = scheme.toLowerCase(Locale.US);
+        int port = uri.getPort();
+        if ((scheme.equals("http") && port == 80) || (scheme.equals("https") && port == 443)) {
+            port = -1;
+        }
+
+        StringBuilder sb = new StringBuilder(url.length());
+        sb.append(scheme).append("://");
+        if (uri.getRawUserInfo() != null) {
+            sb.append(uri.getRawUserInfo()).append('@');
+        }
+        sb.append(host.toLowerCase(Locale.US));
+        if (port != -1) {
+            sb.append(':').append(port);
+        }
+        if (uri.getRawPath() != null) {
+            sb.append(uri.getRawPath());
+        }
+        if (uri.getRawQuery() != null) {
+            sb.append('?').append(uri.getRawQuery());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the name for a url's image: the SHA-1 hash of the (canonical) url in hex,
+     * followed by "-n" in the unlikely case that another url already has that name.
+     * Called with the index locked.
+     *
+     * @param url the canonical url.
+     * @return the name.
+     */
+    private String nameFor(String url) {
+        String base = hashOf(url);
+        for (int i = 0; i < MAX_NAME_PROBES; i++) {
+            String name = i == 0 ? base : String.format(Locale.US, "%s-%d", base, i);
+            Entry holder = byName.get(name);
+            if (holder == null || holder.url.equals(url))
+                return name;
+            trace(String.format("Name collision [file=%s]: %s", name, url));
+        }
+        throw new CacheDiskImageException(String.format("No free name: %s", url));
+    }
+
+    /**
+     * Get the SHA-1 hash of a string, in hex.
+     *
+     * @param s the string.
+     * @return the hash (HASH_LENGTH hex digits).
+     */
+    private static String hashOf(String s) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException nsae) {
+            throw new CacheDiskImageException("SHA-1 not available.");
+        }
+        byte[] digest = md.digest(s.getBytes(UTF8));
+        StringBuilder sb = new StringBuilder(HASH_LENGTH);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Check whether a name is one produced by nameFor().
+     *
+     * @param name the name.
+     * @return true iff it is a valid name.
+     */
+    static boolean isValidName(String name) {
+        if (name.length() < HASH_LENGTH)
+            return false;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (Character.digit(name.charAt(i), 16) < 0 || Character.isUpperCase(name.charAt(i)))
+                return false;
+        }
+        if (name.length() == HASH_LENGTH)
+            return true;
+        if (name.charAt(HASH_LENGTH) != '-' || name.length() == HASH_LENGTH + 1)
+            return false;
+        for (int i = HASH_LENGTH + 1; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Prefix an image with its url, so that it can be checked when it is read back.
+     * Stored as the url (UTF-8), a newline, then the image.
+     *
+     * @param url  the canonical url.
+     * @param data the encoded image.
+     * @return what is stored.
+     */
+    private static byte[] wrap(String url, byte[] data) {
+        byte[] header = (url + "\n").getBytes(UTF8);
+        byte[] stored = new byte[header.length + data.length];
+        System.arraycopy(header, 0, stored, 0, header.length);
+        System.arraycopy(data, 0, stored, header.length, data.length);
+        return stored;
+    }
+
+    /**
+     * Check that a stored image belongs to a url and remove its header.
+     *
+     * @param url    the canonical url.
+     * @param stored what was read from the store; may be null.
+     * @return the encoded image; null if nothing was read or it belongs to another url.
+     */
+    private static byte[] unwrap(String url, byte[] stored) {
+        if (stored == null)
+            return null;
+        byte[] header = (url + "\n").getBytes(UTF8);
+        if (stored.length < header.length)
+            return null;
+        for (int i = 0; i < header.length; i++) {
+            if (stored[i] != header[i]) {
+                trace(String.format("Stored image belongs to another url: %s", url));
+                return null;
+            }
+        }
+        return Arrays.copyOfRange(stored, header.length, stored.length);
+    }
+
+    /**
+     * The cached files, least recently used first, for rewriting the journal.
+     *
+     * @return one record per cached file.
+     */
+    private List<DiskJournal.Record> records() {
+        List<DiskJournal.Record> records = new ArrayList<>(icdLru.size());
+        for (Entry entry : icdLru.values()) {
+            records.add(new DiskJournal.Record(entry.shortName, entry.getSizeFile(), entry.url));
         }
+        return records;
     }
 
     /**
@@ -127,17 +560,35 @@ public final class CacheDiskImage
      *
      * @param f the File instance for the file to be deleted.
      */
-    private static void deleteFile(File f) {
+    static void deleteFile(File f) {
         if (!f.delete()) {
             throw new CacheDiskImageException(
                     String.format("Could not delete file: %s", f.getName()));
         }
     }
 
+    /**
+     * Delete a file or a directory and everything in it.
+     *
+     * @param f the File instance for the file or directory to be deleted.
+     */
+    static void deleteTree(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteTree(child);
+            }
+        }
+        trace(String.format("  Deleting: %s", f.getName()));
+        deleteFile(f);
+    }
+
     /**
      * Standard singleton makeInstance() method.
      * <p>
      * We avoid the double check lock issue by making the "instance" field "volatile".
+     * <p>
+     * This returns right away; the cache is set up on a background thread (see init()).
      *
      * @param a   standard Activity instance.
      * @param cacheDirName  subdirectory name for the cache -- unique to this app/usage.
@@ -148,8 +599,25 @@ public final class CacheDiskImage
             return instance;
 
         synchronized(CacheDiskImage.class) {
-            if (instance == null)
-                instance = new CacheDiskImage(a, cacheDirName, maxCacheSize);
+            if (instance == null) {
+                final long start = System.nanoTime();
+                final CacheDiskImage cdi = new CacheDiskImage(a, cacheDirName, maxCacheSize);
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        try {
+                            cdi.init(start);
+                        }
+                        catch (CacheDiskImageException cdie) {
+                            Support.loge(String.format("Disk cache not available: %s",
+                                    cdie.getMessage()));
+                        }
+                    }
+                }, "DiskCacheInit");
+                t.start();
+                instance = cdi;
+            }
         }
         return instance;
     }
@@ -162,49 +630,256 @@ public final class CacheDiskImage
     public static void setMaxCacheSize(long _maxCacheSize) {
         if (instance == null)
             throw new CacheDiskImageException("null instance");
-        instance.maxCacheSize = _maxCacheSize;
-        trace(String.format(Locale.US, "Setting maximum disk cache size: %d", instance.maxCacheSize));
+        synchronized (instance) {
+            instance.maxCacheSize = _maxCacheSize;
+            trace(String.format(Locale.US, "Setting maximum disk cache size: %d",
+                    instance.maxCacheSize));
+        }
+    }
+
+    /**
+     * Change the eviction watermarks.
+     *
+     * @param high percentage of the maximum size past which eviction works ahead.
+     * @param low  percentage of the maximum size at which working ahead stops;
+     *             capped at the high watermark.
+     */
+    public static void setWatermarks(int high, int low) {
+        if (instance == null)
+            throw new CacheDiskImageException("null instance");
+        synchronized (instance) {
+            instance.highWatermark = Math.max(0, Math.min(high, 100));
+            instance.lowWatermark = Math.max(0, Math.min(low, instance.highWatermark));
+            trace(String.format(Locale.US, "Setting watermarks: high=%d%% low=%d%%",
+                    instance.highWatermark, instance.lowWatermark));
+        }
+    }
+
+    /*
+     * Getters.
+     */
+    public synchronized long getMaxSize() { return maxCacheSize; }
+    public synchronized long getCurrentSize() { return currentCacheSize; }
+    public synchronized long getPeakSize() { return peakCacheSize; }
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+    public synchronized long getEvictions() { return evictions; }
+    public synchronized int getEntryCount() { return icdLru.size(); }
+
+    /**
+     * Publish the disk cache's hits, misses, evictions and sizes as gauges
+     * in the metrics registry ("disk.hits" and so on).
+     */
+    private void registerMetrics() {
+        Metrics.register("disk.hits", new Metrics.Gauge() {
+            public long value() { return getHits(); }
+        });
+        Metrics.register("disk.misses", new Metrics.Gauge() {
+            public long value() { return getMisses(); }
+        });
+        Metrics.register("disk.evictions", new Metrics.Gauge() {
+            public long value() { return getEvictions(); }
+        });
+        Metrics.register("disk.entries", new Metrics.Gauge() {
+            public long value() { return getEntryCount(); }
+        });
+        Metrics.register("disk.bytes", new Metrics.Gauge() {
+            public long value() { return getCurrentSize(); }
+        });
+        Metrics.register("disk.bytes_peak", new Metrics.Gauge() {
+            public long value() { return getPeakSize(); }
+        });
+        Metrics.register("disk.bytes_max", new Metrics.Gauge() {
+            public long value() { return getMaxSize(); }
+        });
     }
 
     /**
      * Get the image from the disk, if it is present on disk.
-     * If not, get it from the network and cache it.
+     * <p>
+     * The image is returned as it is stored (encoded); decoding is left to the caller,
+     * which may also keep the encoded image in memory.
+     * <p>
+     * The index is only locked to look the entry up; the image is read from the store
+     * without any lock held, so reads of different images run in parallel. If the image
+     * is evicted while it is being read, the lookup is reported as a miss. If the index
+     * doesn't know the image, the store is checked directly (see probe()). Until the
+     * index has been restored from the journal, the store is used alone (see
+     * getUnindexed()).
      *
-     * @param url url for the bitmap.
-     * @return bitmap obtained from the URL.
+     * @param url url for the image.
+     * @return the encoded image, or null if it isn't in the cache.
      */
-    public synchronized Bitmap get(String url) {
+    public byte[] get(String url) {
         if (!Settings.isDiskCacheOn())
             return null;
 
-        Entry entry = getEntry(url);   // this always returns a valid entry.
-        boolean stored = entry.isStored();
+        url = canonicalUrl(url);
+        if (!ready)
+            return getUnindexed(url);
+        byte[] queued = writer.getPending(url);
+        if (queued != null) {
+            synchronized (this) {
+                trace(String.format("Getting [queued]: %s", url));
+                hits++;
+            }
+            return queued;
+        }
 
-        trace(String.format("Getting [%s]: %s", stored ? "found" : "not found", url));
+        String name;
+        boolean stored;
+        synchronized (this) {
+            // A miss doesn't create an entry: only images found get one.
+            Entry entry = icdHm.get(url);
+            stored = entry != null && entry.isStored();
+            name = entry != null ? entry.shortName : nameFor(url);
 
-        if (!stored)
+            trace(String.format("Getting [%s]: %s", stored ? "found" : "not indexed", url));
+
+            if (stored) {
+                icdLru.get(url); // mark as most recently used
+                journal.read(name);
+            }
+        }
+        if (stored) {
+            writer.requestFlush();
+        }
+
+        byte[] data = stored ? unwrap(url, store.read(name)) : probe(url, name);
+        synchronized (this) {
+            if (data == null) {
+                if (stored)
+                    trace(String.format("Evicted while being read: %s", url));
+                misses++;
+            }
+            else {
+                hits++;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Get an image while the index is being restored from the journal, from the store
+     * alone: the index isn't used at all, since readJournal() is rebuilding it.
+     * <p>
+     * The image is looked up under its url's hash; the rare image stored under another
+     * name (after a hash collision) is only found once the cache is ready. An image found
+     * is indexed as recently used once the journal has been replayed (see
+     * indexEarlyHits()), so that it isn't deleted as unknown to the journal.
+     *
+     * @param url the canonical url.
+     * @return the encoded image; null if it isn't in the store, or the store isn't open.
+     */
+    private byte[] getUnindexed(String url) {
+        byte[] data = null;
+        if (storeReady) {
+            String name = hashOf(url);
+            byte[] stored = store.read(name);
+            data = unwrap(url, stored);
+            if (data != null) {
+                earlyHits.add(new Found(url, name, stored.length));
+            }
+        }
+        synchronized (this) {
+            trace(String.format("Getting [%s, not ready]: %s",
+                    data == null ? "not found" : "found", url));
+            if (data == null)
+                misses++;
+            else
+                hits++;
+        }
+        return data;
+    }
+
+    /**
+     * Look for an image the index doesn't know about directly in the store.
+     * <p>
+     * An image's name only depends on its url, so the store can be checked without the
+     * index; this finds images whose journal entry was lost (e.g., in a crash). An image
+     * found this way is added to the index by the writer thread (see adopt()), since
+     * adding it may evict others and only the writer deletes from the store.
+     *
+     * @param url  the canonical url.
+     * @param name the image's name in the store.
+     * @return the encoded image; null if it isn't in the store.
+     */
+    private byte[] probe(String url, String name) {
+        byte[] stored = store.read(name);
+        byte[] data = unwrap(url, stored);
+        if (data == null)
             return null;
+        trace(String.format("Found unindexed image [file=%s]: %s", name, url));
+        adoptLater(url, stored.length);
+        return data;
+    }
 
-        String filename = entry.longName;
-        File f = new File(filename);
-        fileCheck(f, url);
-        Bitmap bitmap = BitmapFactory.decodeFile(filename);
-        if (bitmap == null) {
-            throw new CacheDiskImageException("Could not obtain bitmap from factory.");
+    /**
+     * Have the writer thread add an image found in the store to the index (see adopt()),
+     * unless it is already indexed or about to be.
+     *
+     * @param url  the canonical url.
+     * @param size the size of the stored image, when it was found.
+     */
+    private void adoptLater(String url, final long size) {
+        final Entry entry;
+        synchronized (this) {
+            entry = getEntry(url);
+            if (entry.isStored() || entry.isAdopting())
+                return;
+            entry.setAdopting(true);
         }
-        return bitmap;
+        writer.post(new Runnable() {
+            @Override
+            public void run() {
+                adopt(entry, size);
+            }
+        });
     }
 
     /**
-     * Add an image bitmap to the disk cache.
+     * Add an image found by probe() to the index, making room for it. Called by the
+     * writer thread.
      *
-     * Delete entries for the cache, if/as necessary.
+     * @param entry the image's entry.
+     * @param size  the size of the stored image, when it was found.
+     */
+    private void adopt(Entry entry, long size) {
+        List<Entry> evicted;
+        ReentrantLock keyLock = keyLockFor(entry.url);
+        keyLock.lock();
+        try {
+            // Only the writer deletes, so an image still there now stays until it is evicted.
+            boolean present = store.size(entry.shortName) == size;
+            synchronized (this) {
+                entry.setAdopting(false);
+                if (!present) {
+                    forget(entry);
+                    return;
+                }
+                if (entry.isStored())
+                    return;
+                entry.setSizeFile(size);
+                evicted = commit(entry);
+            }
+        }
+        finally {
+            keyLock.unlock();
+        }
+        deleteEvicted(evicted);
+    }
+
+    /**
+     * Add an encoded image to the disk cache.
+     * <p>
+     * The image is queued and written in the background (see DiskWriter), so the caller
+     * doesn't wait for the disk. If the write queue is full, the image may be dropped.
      *
      * @param wrActivity    the current Activity.
      * @param url           the url for the image to be stored.
-     * @param bitmap        the bitmap of the image to be stored.
+     * @param data          the encoded image, as downloaded.
      */
-    public synchronized void add(WeakReference<Activity> wrActivity, String url, Bitmap bitmap) {
+    public void add(WeakReference<Activity> wrActivity, String url, byte[] data) {
         if (!Settings.isDiskCacheOn())
             return;
 
@@ -212,88 +887,244 @@ public final class CacheDiskImage
             throw new CacheDiskImageException("null url");
         }
 
-        trace(String.format("Adding: %s", url));
+        if (!ready) {
+            trace(String.format("Not ready, not added: %s", url));
+            return;
+        }
+
+        url = canonicalUrl(url);
+        trace(String.format("Queueing: %s", url));
+        writer.enqueue(wrActivity, url, data);
+    }
+
+    /**
+     * Write a batch of queued images to the disk cache. Called by the writer thread.
+     *
+     * Delete entries for the cache, if/as necessary.
+     * <p>
+     * Each image is written to the store under its key's lock but without the index
+     * locked; the store only makes it visible once it is complete (see DiskStore.write()). The index is then updated for the whole batch (and room
+     * made for the new files) in one short critical section, and the evicted files are
+     * deleted once the index lock has been released.
+     *
+     * @param batch the queued images.
+     */
+    void addBatch(List<DiskWriter.Write> batch) {
+        List<Entry> written = new ArrayList<>(batch.size());
+        List<ReentrantLock> held = new ArrayList<>(batch.size());
+        List<Entry> evicted = new ArrayList<>();
+        try {
+            for (DiskWriter.Write w : batch) {
+                ReentrantLock keyLock = keyLockFor(w.url);
+                keyLock.lock();
+                held.add(keyLock);
+
+                Entry entry = prepare(w.url, w.data);
+                if (entry == null)
+                    continue;
+
+                /*
+                 * Write the image before accounting for it, so that a failed write leaves
+                 * the cache unchanged.
+                 */
+                byte[] stored = wrap(entry.url, w.data);
+                try {
+                    store.write(entry.shortName, stored);
+                    entry.setSizeFile(stored.length);
+                    written.add(entry);
+                }
+                catch (IOException ioe) {
+                    String msg = String.format("CacheDiskImage - IO Exception: %s: %s",
+                            entry.shortName, ioe.getMessage());
+                    Toaster.display(w.wrActivity, msg);
+                    Support.loge(msg);
+                    synchronized (this) {
+                        forget(entry);
+                    }
+                }
+            }
+
+            synchronized (this) {
+                for (Entry entry : written) {
+                    if (entry.isStored())
+                        continue;   // queued twice; the second write replaced the first.
+                    evicted.addAll(commit(entry));
+                }
+            }
+        }
+        finally {
+            for (ReentrantLock keyLock : held) {
+                keyLock.unlock();
+            }
+        }
+
+        deleteEvicted(evicted);
+        store.maintain();
+    }
+
+    /**
+     * Add a stored image to the index, making room for it. Called with the index locked.
+     *
+     * @param entry the image's entry, with its size set.
+     * @return the entries evicted to make room; the caller deletes them (see deleteEvicted()).
+     */
+    private List<Entry> commit(Entry entry) {
+        long fileSize = entry.getSizeFile();
 
+        // Clear exactly as many cache entries as needed to make room.
+        List<Entry> evicted = evict(maxCacheSize - fileSize, Integer.MAX_VALUE);
+
+        currentCacheSize += fileSize;
+        peakCacheSize = Math.max(peakCacheSize, currentCacheSize);
+        icdLru.put(entry.url, entry);
+        entry.setStored(true);
+        journal.add(new DiskJournal.Record(entry.shortName, fileSize, entry.url));
+        prSizes("Final", entry);
+
+        // Past the high watermark: evict one batch towards the low watermark.
+        if (currentCacheSize > maxCacheSize * highWatermark / 100) {
+            evicted.addAll(evict(maxCacheSize * lowWatermark / 100, EVICTION_BATCH_SIZE));
+        }
+        return evicted;
+    }
+
+    /**
+     * Write the journal lines buffered by index updates, compacting the journal first if
+     * it has grown too large. Called by the writer thread, without the index locked.
+     * <p>
+     * A compacted journal is written from a snapshot of the index taken under the lock;
+     * the file itself is written after the lock has been released.
+     */
+    void flushJournal() {
+        List<DiskJournal.Record> snapshot = null;
+        synchronized (this) {
+            if (journal.needsCompaction(icdLru.size())) {
+                snapshot = records();
+                journal.clearPending();
+            }
+        }
+        if (snapshot != null) {
+            journal.rebuild(snapshot);
+        }
+        journal.flush();
+    }
+
+    /**
+     * Check whether an image should be written. Called with the image's key locked.
+     *
+     * @param url  the url for the image.
+     * @param data the encoded image.
+     * @return the image's entry; null if it shouldn't be written.
+     */
+    private synchronized Entry prepare(String url, byte[] data) {
         Entry entry = getEntry(url);   // this always returns a valid entry.
-        String filename = entry.longName;
         trace(String.format("Adding [file=%s]: %s", entry.shortName, url));
 
         if (maxCacheSize == 0) {
-            throw new CacheDiskImageException("cache sizeBitmap not initialized.");
+            throw new CacheDiskImageException("cache size not initialized.");
         }
 
         if (entry.isStored()) {
-            trace("Already added this image... returning\n");
-            return;
+            trace("Already added this image... skipping\n");
+            return null;
         }
 
-        entry.setSizeBitmap(bitmap.getByteCount());
+        if (data.length > maxCacheSize) {
+            trace(String.format(Locale.US, "Larger than the cache (%d bytes), not added: %s",
+                    data.length, truncImageString(url)));
+            forget(entry);
+            return null;
+        }
 
-        /*
-         * Clear cache entries, if necessary.
-         *
-         * Catch-22: We need to know the size of the compressed bitmap as a file
-         * so that we can determine whether or not to free up additional space. However,
-         * we won't know the file size until we write it out. Instead, we make the
-         * assumption that the compressed file will be smaller than the original bitmap
-         * and use the original bitmap's size to determine whether or not to delete
-         * some of the cached files.
-         */
         prSizes("Initial", entry);
-        if (currentCacheSize + entry.getSizeBitmap() > maxCacheSize) {
-            while ((currentCacheSize + (entry.getSizeBitmap() * IMAGE_SIZE_MULTIPLIER)) > maxCacheSize) {
-                if (icdLl.isEmpty()) {
-                    break;
-                }
+        return entry;
+    }
 
-                // Remove entry from internal data structures.
-                String lastImage = icdLl.removeLast();
-                if (lastImage == null) {
-                    throw new CacheDiskImageException("null key when removing entries.");
-                }
-                Entry lastEntry = icdHm.get(lastImage);
-
-                // Delete the bitmap file.
-                String msg = String.format("Removing: File=%s Url=%s",
-                        lastEntry.shortName, truncImageString(lastEntry.url));
-                trace(msg);
-
-                File le = new File(lastEntry.longName);
-                long lastFileSize = le.length();
-                prSizes("Pre-removal", lastEntry);
-                fileCheck(le, lastEntry.url);
-                deleteFile(le);
-                lastEntry.setStored(false);
-                currentCacheSize -= lastFileSize;
-                prSizes("Post-removal", lastEntry);
-            }
+    /**
+     * Remove least recently used entries from the index until the cache is no larger than
+     * the target size or the maximum number of entries has been removed. Called with the
+     * index locked; the caller deletes the files (see deleteEvicted()).
+     *
+     * @param targetSize  size, in bytes, to shrink the cache to.
+     * @param maxEntries  maximum number of entries to remove.
+     * @return the entries removed.
+     */
+    private List<Entry> evict(long targetSize, int maxEntries) {
+        List<Entry> evicted = new ArrayList<>();
+        Iterator<Entry> it = icdLru.values().iterator();
+        while (evicted.size() < maxEntries
+                && currentCacheSize > Math.max(targetSize, 0) && it.hasNext()) {
+            // Remove entry from internal data structures.
+            Entry lastEntry = it.next();
+            it.remove();
+
+            String msg = String.format("Removing: File=%s Url=%s",
+                    lastEntry.shortName, truncImageString(lastEntry.url));
+            trace(msg);
+
+            prSizes("Pre-removal", lastEntry);
+            journal.remove(lastEntry.shortName);
+            lastEntry.setStored(false);
+            currentCacheSize -= lastEntry.getSizeFile();
+            evictions++;
+            prSizes("Post-removal", lastEntry);
+            evicted.add(lastEntry);
         }
+        return evicted;
+    }
 
-        try (FileOutputStream fos = new FileOutputStream(filename)) {
-            /*
-             * PNG is the preferred format; that will also cause the second parameter, quality,
-             * to be ignored.
-             */
-            if (bitmap.compress(Bitmap.CompressFormat.PNG, 0, fos)) {
-                File f = new File(entry.longName);
-                entry.setSizeFile(f.length());
-                currentCacheSize += entry.getSizeFile();
-                icdLl.add(entry.url);
-                entry.setStored(true);
-                prSizes("Final", entry);
+    /**
+     * Delete the files of evicted entries. Called without the index locked.
+     * <p>
+     * Each file is deleted under its key's lock, and only if the image hasn't been added
+     * back in the meantime (in which case the file holds the new copy).
+     *
+     * @param evicted entries removed from the index by evict().
+     */
+    private void deleteEvicted(List<Entry> evicted) {
+        for (Entry entry : evicted) {
+            ReentrantLock keyLock = keyLockFor(entry.url);
+            keyLock.lock();
+            try {
+                synchronized (this) {
+                    if (entry.isStored())
+                        continue;
+                }
+                store.delete(entry.shortName);
+                synchronized (this) {
+                    forget(entry);
+                }
             }
-            else {
-                String msg = String.format(
-                        "CacheDiskImage - file could not be written out: %s", filename);
-                Toaster.display(wrActivity, msg);
-                Support.loge(msg);
+            finally {
+                keyLock.unlock();
             }
         }
-        catch (IOException ioe) {
-            String msg = String.format("CacheDiskImage - IO Exception: %s", filename);
-            Toaster.display(wrActivity, msg);
-            Support.loge(msg);
-        }
+    }
+
+    /**
+     * Drop an entry whose image isn't stored (or about to be) from icdHm and byName, so
+     * that the index only holds entries for images on disk. Called with the image's key
+     * and the index locked.
+     *
+     * @param entry the entry.
+     */
+    private void forget(Entry entry) {
+        if (entry.isStored() || entry.isAdopting() || icdHm.get(entry.url) != entry)
+            return;
+        icdHm.remove(entry.url);
+        byName.remove(entry.shortName);
+    }
+
+    /**
+     * Get the lock for a key (url). Keys are hashed onto a fixed set of locks.
+     *
+     * @param url the key.
+     * @return the key's lock.
+     */
+    private ReentrantLock keyLockFor(String url) {
+        int h = url.hashCode();
+        h ^= (h >>> 16);
+        return keyLocks[h & (keyLocks.length - 1)];
     }
 
     /**
@@ -305,10 +1136,10 @@ public final class CacheDiskImage
     private void prSizes(String tag, Entry entry) {
         if (Settings.isAppTraceDetails()) {
             String msg = String.format(Locale.US,
-                    "  DETAILS: %s: Cur:Max=%d:%d [File=%s  Url=%s] [File=%d, Bitmap=%d]",
+                    "  DETAILS: %s: Cur:Max=%d:%d [File=%s  Url=%s] [File=%d]",
                     tag, currentCacheSize, maxCacheSize,
                     entry.shortName, truncImageString(entry.url),
-                    entry.getSizeFile(), entry.getSizeBitmap());
+                    entry.getSizeFile());
             trace(msg);
         }
     }
@@ -334,24 +1165,6 @@ public final class CacheDiskImage
         return cacheDirName;
     }
 
-    /**
-     * Check to ensure the specified File object exists and is a normal file.
-     *
-     * @param f     the File object of interest (it is for a bitmap).
-     * @param url   the url of the image associated with the bitmap.
-     *              It serves as the unique id for the cached image bitmap.
-     */
-    private void fileCheck(File f, String url) {
-        if (!f.exists()) {
-            throw new CacheDiskImageException(
-                    String.format("Missing [file=%s]: %s", f.getName(), url));
-        }
-        if (!f.isFile()) {
-            throw new CacheDiskImageException(
-                    String.format("File is not a normal file [file=%s]: %s", f.getName(), url));
-        }
-    }
-
     /**
      * Test for the presence of external storage.
      * <p>
@@ -368,8 +1181,8 @@ public final class CacheDiskImage
     /**
      * Get the Entry for the specified URL.
      * Create the Entry, if necessary.
-     * This does not have to be synchronized since all calls to it
-     * come from synchronized methods (get() and add()).
+     * Callers already hold the index lock; it is taken here as well
+     * since the Entry constructor adds the new Entry to the index.
      *
      * @param url   url of the image to be loaded.
      * @return  Entry representing the image to be loaded.
@@ -391,39 +1204,42 @@ public final class CacheDiskImage
         Support.trc(Settings.isDiskCacheTrace(), "Cache Disk", msg);
     }
 
-    /**
-     * Counter value provides last part of filename.
-     * Can create a few billion unique filenames.
-     * Must be outside of the Entry definition, since it is static and, as an inner
-     * class, Entry can't be.
-     */
-    private int entryCounter = 0;
+    /** An image found in the store by getUnindexed(). */
+    private static final class Found
+    {
+        final String url;
+        final String name;
+        final long size;
+
+        Found(String _url, String _name, long _size) {
+            url = _url;
+            name = _name;
+            size = _size;
+        }
+    }
 
     /**
-     * The Entry class provides a wrapper containing metadata for each image that might
-     * be stored in the disk cache. Once an entry is created for a given image (as identified
-     * by the image's url), it exists indefinitely.
+     * The Entry class provides a wrapper containing metadata for each image that is stored
+     * in the disk cache, or about to be (an image being written or adopted). Lookups that
+     * miss don't create entries, and an entry is dropped again when its image is evicted
+     * or can't be stored (see forget()).
      * <p>
      * All entries are stored in icdHm.
-     * However, entries are only stored in icdLl when their image is
+     * However, entries are only stored in icdLru when their image is
      * stored in the file system.
      * <p>
-     * Each image is uniquely identified by its url. In addition, a unique long "id"
-     * is generated for each image (there is a 1:1 mapping between urls and ids) and
-     * used to create the cache filename.
-     * <p>
-     * The url and id are stored in the Entry as identifiers. The short and long names
-     * are stored for performance reasons, as
+     * Each image is uniquely identified by its canonical url. Its name in the store is
+     * derived from a hash of the url (see nameFor()), so an image can be found in the
+     * store without the index. The image is stored with its url, which is checked when
+     * it is read back, so a hash collision never returns another url's image.
      */
     private class Entry
     {
-        final private String url;       // unique identifier for the image.
-        final private long id;          // unique id for the image (usable in its filename).
-        final private String shortName; // base name for the image file (including its id).
-        final private String longName;  // full name for the image file.
-        private long sizeBitmap;        // size of the bitmap in bytes.
+        final private String url;       // unique identifier for the image (canonical url).
+        final private String shortName; // name for the image in the store (from the url's hash).
         private long sizeFile;          // size of the image file on disk in bytes.
         private boolean stored;         // true iff the image has been stored in the file system.
+        private boolean adopting;       // true iff probe() has queued the image to be indexed.
 
         /**
          * Constructor.
@@ -431,23 +1247,32 @@ public final class CacheDiskImage
          * @param _url  Image url. Serves as the unique id for the image's bitmap in the disk cache.
          */
         private Entry(String _url) {
+            this(_url, nameFor(_url));
+        }
+
+        /**
+         * Constructor for an entry restored from the journal.
+         *
+         * @param _url  Image url (canonical).
+         * @param _name the image's name in the store.
+         */
+        private Entry(String _url, String _name) {
             url   = _url;
-            id    = entryCounter++;
-            shortName = String.format(Locale.US, "%s-%d", FILENAME_BASE, id);
-            longName = cacheDirName + File.separator + shortName;
+            shortName = _name;
             icdHm.put(url, this);
+            byName.put(shortName, this);
         }
 
         /*
          * Getters and setters.
          */
-        private long getSizeBitmap() { return sizeBitmap; }
-        private void setSizeBitmap(long _sizeBitmap) { sizeBitmap = _sizeBitmap; }
-
         private long getSizeFile() { return sizeFile; }
         private void setSizeFile(long _sizeFile) { sizeFile = _sizeFile; }
 
         private boolean isStored() { return stored; }
         private void setStored(boolean _stored) { stored = _stored; }
+
+        private boolean isAdopting() { return adopting; }
+        private void setAdopting(boolean _adopting) { adopting = _adopting; }
     }
 }
@@ -0,0 +1,323 @@
+package com.barryholroyd.productlisttechdemo.cache_disk;
+
+import com.barryholroyd.productlisttechdemo.config.Settings;
+import com.barryholroyd.productlisttechdemo.support.Support;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Append-only journal of the disk cache's index, so that the cache survives restarts.
+ * <p>
+ * As in DiskLruCache, the journal starts with a header (a magic string and a version,
+ * then a blank line), followed by one line per operation:
+ * <pre>
+ *     ADD 2fd4e1c67a2d28fced849ee1bb76e7391b93eb12 4521 http://.../thumbnail.jpeg
+ *     READ 2fd4e1c67a2d28fced849ee1bb76e7391b93eb12
+ *     REMOVE 2fd4e1c67a2d28fced849ee1bb76e7391b93eb12
+ * </pre>
+ * ADD records that a file has been completely written and is now in the cache, READ that
+ * it was used (so that the LRU order can be rebuilt) and REMOVE that it was evicted.
+ * <p>
+ * Replaying the journal at startup rebuilds the index. A crash can leave a partially
+ * written last line; replay stops at the first incomplete or unreadable line, so at worst
+ * the most recent operation is forgotten. Since READ and REMOVE lines make the journal
+ * grow without bound, it is compacted (rewritten with one ADD line per cached file, in
+ * LRU order) once the redundant lines outnumber the useful ones.
+ * <p>
+ * add(), read() and remove() may be called from any thread (typically with the cache's
+ * index locked): they only buffer the line, so no file I/O is done under the caller's
+ * locks. The buffered lines are written by flush(). replay(), rebuild() and flush() do
+ * the file I/O and are only called by one thread at a time (the disk writer, or
+ * CacheDiskImage.init() before the writer is started).
+ */
+final class DiskJournal
+{
+    /** Name of the journal file within the cache directory. */
+    private static final String JOURNAL_FILE = "journal";
+
+    /** Name of the file a compacted journal is written to before it replaces the journal. */
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+
+    /** First line of the journal. */
+    private static final String MAGIC = "productlisttechdemo.CacheDiskImage";
+
+    /** Second line of the journal; change it if the format changes (2: names are url hashes). */
+    private static final String VERSION = "2";
+
+    /** Operations. */
+    private static final String ADD = "ADD";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+
+    /** Don't compact until there are at least this many redundant lines. */
+    private static final int COMPACT_THRESHOLD = 2000;
+
+    /** Character set of the journal. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** One cached file, as recorded by an ADD line. */
+    static final class Record {
+        final String name;
+        final long size;
+        final String url;
+
+        Record(String _name, long _size, String _url) {
+            name = _name;
+            size = _size;
+            url  = _url;
+        }
+    }
+
+    /** Receives the operations read from the journal during replay. */
+    interface Replay {
+        void add(Record record);
+        void read(String name);
+        void remove(String name);
+    }
+
+    /** Cache directory. */
+    private final File dir;
+
+    /** Writer appending to the journal; null if the journal couldn't be opened. */
+    private Writer writer = null;
+
+    /**
+     * Number of lines that don't describe a cached file (READ, REMOVE, superseded ADD).
+     * Guarded by the instance's lock.
+     */
+    private int redundantOps = 0;
+
+    /** Lines not yet written to the journal. Guarded by the instance's lock. */
+    private StringBuilder pending = new StringBuilder();
+
+    /**
+     * Constructor. The journal isn't opened until replay() or rebuild() is called.
+     *
+     * @param _dir the cache directory.
+     */
+    DiskJournal(File _dir) {
+        dir = _dir;
+    }
+
+    /**
+     * Check whether a file in the cache directory belongs to the journal.
+     *
+     * @param name the file's name.
+     * @return true iff it is the journal or a journal being rewritten.
+     */
+    static boolean isJournalFile(String name) {
+        return name.equals(JOURNAL_FILE) || name.equals(JOURNAL_FILE_TMP);
+    }
+
+    /**
+     * Read the journal and pass each complete operation to the Replay instance.
+     *
+     * @param replay receives the operations.
+     * @return false if there is no journal or its header isn't recognized.
+     */
+    boolean replay(Replay replay) {
+        File journal = new File(dir, JOURNAL_FILE);
+        if (!journal.exists())
+            return false;
+
+        String contents;
+        try (FileInputStream fis = new FileInputStream(journal)) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream((int) journal.length());
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = fis.read(buf)) != -1) {
+                baos.write(buf, 0, n);
+            }
+            contents = new String(baos.toByteArray(), UTF8);
+        }
+        catch (IOException ioe) {
+            Support.loge(String.format("Could not read disk cache journal: %s", ioe.getMessage()));
+            return false;
+        }
+
+        // The text after the last newline, if any, is an incomplete line: ignore it.
+        String[] lines = contents.split("\n", -1);
+        if (lines.length < 4 || !lines[0].equals(MAGIC) || !lines[1].equals(VERSION)
+                || !lines[2].isEmpty()) {
+            trace("Unrecognized journal header; ignoring the journal.");
+            return false;
+        }
+
+        int ops = 0;
+        for (int i = 3; i < lines.length - 1; i++) {
+            String[] parts = lines[i].split(" ", 4);
+            try {
+                if (parts[0].equals(ADD) && parts.length == 4) {
+                    replay.add(new Record(parts[1], Long.parseLong(parts[2]), parts[3]));
+                }
+                else if (parts[0].equals(READ) && parts.length == 2) {
+                    replay.read(parts[1]);
+                }
+                else if (parts[0].equals(REMOVE) && parts.length == 2) {
+                    replay.remove(parts[1]);
+                }
+                else {
+                    trace(String.format(Locale.US, "Bad journal line %d; stopping replay.", i + 1));
+                    break;
+                }
+            }
+            catch (NumberFormatException nfe) {
+                trace(String.format(Locale.US, "Bad journal line %d; stopping replay.", i + 1));
+                break;
+            }
+            ops++;
+        }
+        trace(String.format(Locale.US, "Replayed %d journal operations.", ops));
+        synchronized (this) {
+            redundantOps = ops;
+        }
+        return true;
+    }
+
+    /**
+     * Replace the journal with one ADD line per cached file and reopen it for appending.
+     * <p>
+     * The records are a snapshot of the index: clearPending() must be called when it is
+     * taken, since the lines buffered until then are already reflected in it. Lines
+     * buffered after that are written by the next flush().
+     *
+     * @param records the cached files, least recently used first.
+     */
+    void rebuild(List<Record> records) {
+        close();
+        File tmp = new File(dir, JOURNAL_FILE_TMP);
+        File journal = new File(dir, JOURNAL_FILE);
+        try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8))) {
+            w.write(MAGIC + "\n" + VERSION + "\n\n");
+            for (Record r : records) {
+                w.write(String.format(Locale.US, "%s %s %d %s\n", ADD, r.name, r.size, r.url));
+            }
+        }
+        catch (IOException ioe) {
+            Support.loge(String.format("Could not write disk cache journal: %s", ioe.getMessage()));
+            return;
+        }
+        if (!tmp.renameTo(journal)) {
+            Support.loge("Could not replace disk cache journal.");
+            return;
+        }
+        trace(String.format(Locale.US, "Rebuilt journal: %d entries.", records.size()));
+        open();
+    }
+
+    /**
+     * Record that a file has been written and added to the cache.
+     *
+     * @param record the file added.
+     */
+    synchronized void add(Record record) {
+        pending.append(String.format(Locale.US, "%s %s %d %s\n", ADD, record.name, record.size, record.url));
+    }
+
+    /**
+     * Record that a cached file was used.
+     *
+     * @param name the file's name.
+     */
+    synchronized void read(String name) {
+        redundantOps++;
+        pending.append(String.format("%s %s\n", READ, name));
+    }
+
+    /**
+     * Record that a file was removed from the cache.
+     *
+     * @param name the file's name.
+     */
+    synchronized void remove(String name) {
+        redundantOps += 2; // both this line and the file's ADD line
+        pending.append(String.format("%s %s\n", REMOVE, name));
+    }
+
+    /**
+     * Check whether the journal is worth compacting.
+     *
+     * @param entries number of files in the cache.
+     * @return true iff redundant lines outnumber useful ones (and there are many of them).
+     */
+    synchronized boolean needsCompaction(int entries) {
+        return redundantOps >= COMPACT_THRESHOLD && redundantOps >= entries;
+    }
+
+    /**
+     * Discard the buffered lines, because a snapshot of the index that already reflects
+     * them is about to be written by rebuild().
+     */
+    synchronized void clearPending() {
+        pending.setLength(0);
+        redundantOps = 0;
+    }
+
+    /**
+     * Write the buffered lines to the journal. They are flushed right away, so that a crash
+     * loses at most the lines buffered since the last flush().
+     */
+    void flush() {
+        String lines;
+        synchronized (this) {
+            if (pending.length() == 0)
+                return;
+            lines = pending.toString();
+            pending = new StringBuilder();
+        }
+        if (writer == null)
+            return;
+        try {
+            writer.write(lines);
+            writer.flush();
+        }
+        catch (IOException ioe) {
+            Support.loge(String.format("Could not write disk cache journal: %s", ioe.getMessage()));
+            close();
+        }
+    }
+
+    /** Close the journal. */
+    void close() {
+        if (writer == null)
+            return;
+        try {
+            writer.close();
+        }
+        catch (IOException ioe) {
+            Support.loge(String.format("Could not close disk cache journal: %s", ioe.getMessage()));
+        }
+        writer = null;
+    }
+
+    /** Open the journal for appending. */
+    private void open() {
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(dir, JOURNAL_FILE), true), UTF8));
+        }
+        catch (IOException ioe) {
+            Support.loge(String.format("Could not open disk cache journal: %s", ioe.getMessage()));
+            writer = null;
+        }
+    }
+
+    /**
+     * Tracing method specific to the disk cache journal.
+     *
+     * @param msg message to be logged.
+     */
+    private static void trace(String msg) {
+        Support.trc(Settings.isDiskCacheTrace(), "Disk Journal", msg);
+    }
+}
@@ -0,0 +1,73 @@
+package com.barryholroyd.productlisttechdemo.cache_disk;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Storage engine for the disk cache: stores each image's bytes under a name.
+ * <p>
+ * CacheDiskImage keeps the index (which urls are cached, the LRU order and the sizes)
+ * and the journal; the store only holds the bytes. Two engines are available (see
+ * Settings.isDiskCachePack()):
+ * <ul>
+ *     <li>FileStore: one file per image.</li>
+ *     <li>PackStore: images appended to a few large segment files.</li>
+ * </ul>
+ * <p>
+ * read() may be called from any thread. write(), delete() and maintain() are only
+ * called by one thread at a time (the disk writer, or CacheDiskImage.init() before
+ * the writer is started).
+ */
+interface DiskStore
+{
+    /**
+     * Store an image. The image is only visible to read() once it is completely stored.
+     *
+     * @param name the image's name.
+     * @param data the encoded image.
+     * @throws IOException if the image could not be stored.
+     */
+    void write(String name, byte[] data) throws IOException;
+
+    /**
+     * Read an image.
+     *
+     * @param name the image's name.
+     * @return the encoded image; null if it isn't stored (e.g., it was deleted meanwhile)
+     *         or couldn't be read.
+     */
+    byte[] read(String name);
+
+    /**
+     * Get the size of a stored image.
+     *
+     * @param name the image's name.
+     * @return the image's size in bytes; -1 if it isn't stored.
+     */
+    long size(String name);
+
+    /**
+     * Delete an image.
+     *
+     * @param name the image's name.
+     */
+    void delete(String name);
+
+    /**
+     * Delete every image except those named, along with anything else in the cache
+     * directory the store doesn't recognize (other than the journal). Called at startup,
+     * once the index has been rebuilt from the journal.
+     *
+     * @param names the names of the images to keep.
+     */
+    void retainOnly(Set<String> names);
+
+    /** Background housekeeping; called after each batch of writes. */
+    void maintain();
+
+    /**
+     * Release the files the store holds open, so that the directory can be opened again
+     * (e.g., by a new store). The store can't be used afterwards.
+     */
+    void close();
+}
@@ -0,0 +1,242 @@
+package com.barryholroyd.productlisttechdemo.cache_disk;
+
+import android.app.Activity;
+import android.os.Process;
+
+import com.barryholroyd.productlisttechdemo.config.Settings;
+import com.barryholroyd.productlisttechdemo.metrics.Histogram;
+import com.barryholroyd.productlisttechdemo.metrics.Metrics;
+import com.barryholroyd.productlisttechdemo.support.Support;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind queue for the disk cache.
+ * <p>
+ * Loader threads hand newly downloaded images to the queue and go straight on to display
+ * them; a single background thread writes them to disk. Whatever has accumulated in the
+ * queue by the time the writer gets to it is written as one batch, so the index and the
+ * journal are updated once per batch rather than once per image.
+ * <p>
+ * The queue is bounded. When it is full, the image is either dropped (it is still in the
+ * memory caches and will simply be downloaded again if it is needed after they have
+ * evicted it) or the loader thread waits for room, depending on the settings.
+ * <p>
+ * Images waiting to be written can still be read (see getPending()), so a queued image
+ * is never reported as a disk cache miss.
+ * <p>
+ * The writer thread also writes the disk cache's journal (see CacheDiskImage.flushJournal()),
+ * after each batch and whenever a lookup asks for it (see requestFlush()), and runs the
+ * other index updates that may delete images (see post()), so that no other thread does
+ * journal I/O or deletes from the store.
+ */
+final class DiskWriter
+{
+    /** Maximum number of images waiting to be written. */
+    private static final int QUEUE_CAPACITY = 64;
+
+    /** Maximum number of images written as one batch. */
+    private static final int MAX_BATCH = 16;
+
+    /** An image waiting to be written. */
+    static final class Write {
+        final WeakReference<Activity> wrActivity;
+        final String url;
+        final byte[] data;
+
+        Write(WeakReference<Activity> _wrActivity, String _url, byte[] _data) {
+            wrActivity = _wrActivity;
+            url = _url;
+            data = _data;
+        }
+    }
+
+    /** Queued to wake the writer thread when there is nothing to write. */
+    private static final Write WAKE = new Write(null, null, null);
+
+    /** The cache the images are written to. */
+    private final CacheDiskImage cache;
+
+    /** Images waiting to be written, oldest first. */
+    private final BlockingQueue<Write> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    /** Images queued or being written, by url. */
+    private final ConcurrentHashMap<String, byte[]> pending = new ConcurrentHashMap<>();
+
+    /** Work for the writer thread other than writing images (see post()). */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /** Whether the writer thread has been asked to write the journal. */
+    private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+
+    /** Number of images dropped because the queue was full. */
+    private final AtomicLong dropped = Metrics.counter("disk.writes_dropped");
+
+    /** Time to write each batch. */
+    private final Histogram latencyBatch = Metrics.histogram("disk.write_batch");
+
+    /** The writer thread; started by start(). */
+    private final Thread thread;
+
+    /**
+     * Constructor.
+     *
+     * @param _cache the cache the images are written to.
+     */
+    DiskWriter(CacheDiskImage _cache) {
+        cache = _cache;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                writeLoop();
+            }
+        }, "DiskWriter");
+        thread.setDaemon(true);
+        Metrics.register("disk.write_queue", new Metrics.Gauge() {
+            public long value() { return queue.size(); }
+        });
+    }
+
+    /** Start the writer thread. */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Queue an image to be written.
+     * <p>
+     * If the queue is full, the image is dropped or the caller waits, according to
+     * Settings.isDiskCacheQueueBlock().
+     *
+     * @param wrActivity the current Activity (for error messages).
+     * @param url        the url for the image.
+     * @param data       the encoded image.
+     */
+    void enqueue(WeakReference<Activity> wrActivity, String url, byte[] data) {
+        if (pending.putIfAbsent(url, data) != null) {
+            trace(String.format("Already queued: %s", url));
+            return;
+        }
+        Write w = new Write(wrActivity, url, data);
+        if (queue.offer(w))
+            return;
+
+        if (Settings.isDiskCacheQueueBlock()) {
+            trace(String.format("Queue full, waiting: %s", url));
+            try {
+                queue.put(w);
+                return;
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        trace(String.format("Queue full, dropped: %s", url));
+        pending.remove(url);
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * Get an image that is waiting to be written.
+     *
+     * @param url the url for the image.
+     * @return the encoded image; null if it isn't waiting to be written.
+     */
+    byte[] getPending(String url) {
+        return pending.get(url);
+    }
+
+    /**
+     * Ask the writer thread to write the journal's buffered lines. If the queue is full,
+     * the writer is busy and writes them after its current batch anyway.
+     */
+    void requestFlush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            queue.offer(WAKE);
+        }
+    }
+
+    /**
+     * Run a task on the writer thread, after its current batch. Used for work that
+     * DiskStore only allows the writer to do (deleting images).
+     *
+     * @param task the task.
+     */
+    void post(Runnable task) {
+        tasks.add(task);
+        if (!queue.offer(WAKE)) {
+            trace("Queue full; task runs after the current batch.");
+        }
+    }
+
+    /** Write queued images, in batches, forever. */
+    private void writeLoop() {
+        List<Write> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            }
+            catch (InterruptedException ie) {
+                trace("Interrupted; exiting.");
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            batch.removeAll(Collections.singleton(WAKE));   // not images
+
+            if (!batch.isEmpty()) {
+                long start = System.nanoTime();
+                try {
+                    cache.addBatch(batch);
+                }
+                catch (RuntimeException re) {
+                    Support.loge(String.format("Disk cache write failed: %s", re.getMessage()));
+                }
+                latencyBatch.recordSince(start);
+                trace(String.format(Locale.US, "Wrote batch of %d.", batch.size()));
+
+                for (Write w : batch) {
+                    pending.remove(w.url);
+                }
+                batch.clear();
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                }
+                catch (RuntimeException re) {
+                    Support.loge(String.format("Disk cache task failed: %s", re.getMessage()));
+                }
+            }
+
+            flushRequested.set(false);
+            try {
+                cache.flushJournal();
+            }
+            catch (RuntimeException re) {
+                Support.loge(String.format("Disk cache journal write failed: %s", re.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Tracing method specific to the disk writer.
+     *
+     * @param msg message to be logged.
+     */
+    private static void trace(String msg) {
+        Support.trc(Settings.isDiskCacheTrace(), "Disk Writer", msg);
+    }
+}
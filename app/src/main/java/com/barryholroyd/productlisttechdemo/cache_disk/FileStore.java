@@ -0,0 +1,162 @@
+package com.barryholroyd.productlisttechdemo.cache_disk;
+
+import com.barryholroyd.productlisttechdemo.config.Settings;
+import com.barryholroyd.productlisttechdemo.support.Support;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Disk cache storage engine with one file per image, named after the image.
+ * <p>
+ * Names start with a hash (see CacheDiskImage.nameFor()), so the files are spread over
+ * up to 256 subdirectories named after the first two hex digits of the name. No directory
+ * gets large, which keeps file creation, lookup and deletion fast.
+ * <p>
+ * Files are written to a temporary file which is then renamed, so that a file is
+ * only ever seen complete.
+ */
+final class FileStore implements DiskStore
+{
+    /** Suffix of a file being written, before it is renamed into place. */
+    static final private String TMP_SUFFIX = ".tmp";
+
+    /** Number of leading characters of a name used for its subdirectory. */
+    static final private int SHARD_LENGTH = 2;
+
+    /** Cache directory. */
+    private final File dir;
+
+    /**
+     * Constructor.
+     *
+     * @param _dir the cache directory (which must exist).
+     */
+    FileStore(File _dir) {
+        dir = _dir;
+    }
+
+    @Override
+    public void write(String name, byte[] data) throws IOException {
+        File f = fileFor(name);
+        File tmp = new File(f.getPath() + TMP_SUFFIX);
+        File shard = f.getParentFile();
+        if (!shard.isDirectory() && !shard.mkdir() && !shard.isDirectory()) {
+            throw new IOException(String.format("Could not create: %s", shard.getName()));
+        }
+        boolean written = false;
+        try {
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                fos.write(data);
+            }
+            if (!tmp.renameTo(f)) {
+                throw new IOException(String.format("Could not rename: %s", tmp.getName()));
+            }
+            written = true;
+        }
+        finally {
+            if (!written && tmp.exists()) {
+                CacheDiskImage.deleteFile(tmp);
+            }
+        }
+    }
+
+    @Override
+    public byte[] read(String name) {
+        File f = fileFor(name);
+        try (FileInputStream fis = new FileInputStream(f)) {
+            byte[] data = new byte[(int) fis.getChannel().size()];
+            int offset = 0;
+            while (offset < data.length) {
+                int n = fis.read(data, offset, data.length - offset);
+                if (n == -1) {
+                    break;
+                }
+                offset += n;
+            }
+            if (offset < data.length) {
+                trace(String.format("Short read: %s", f.getName()));
+                return null;
+            }
+            return data;
+        }
+        catch (FileNotFoundException fnfe) {
+            return null;
+        }
+        catch (IOException ioe) {
+            trace(String.format("Read failed: %s", f.getName()));
+            return null;
+        }
+    }
+
+    @Override
+    public long size(String name) {
+        File f = fileFor(name);
+        return f.isFile() ? f.length() : -1;
+    }
+
+    @Override
+    public void delete(String name) {
+        File f = fileFor(name);
+        if (f.exists()) {
+            CacheDiskImage.deleteFile(f);
+        }
+    }
+
+    @Override
+    public void retainOnly(Set<String> names) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File f : files) {
+            String name = f.getName();
+            if (DiskJournal.isJournalFile(name))
+                continue;
+            if (!f.isDirectory() || name.length() != SHARD_LENGTH) {
+                trace(String.format("Deleting unrecognized file: %s", name));
+                CacheDiskImage.deleteTree(f);
+                continue;
+            }
+            File[] shardFiles = f.listFiles();
+            if (shardFiles == null)
+                continue;
+            for (File sf : shardFiles) {
+                String sfName = sf.getName();
+                if (!names.contains(sfName) || !sfName.startsWith(name)) {
+                    trace(String.format("Deleting unindexed file: %s", sfName));
+                    CacheDiskImage.deleteTree(sf);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void maintain() {}
+
+    /** Nothing is held open between calls. */
+    @Override
+    public void close() {}
+
+    /**
+     * Get the file for a name, in its subdirectory.
+     *
+     * @param name the image's name.
+     * @return the image's file.
+     */
+    private File fileFor(String name) {
+        return new File(new File(dir, name.substring(0, SHARD_LENGTH)), name);
+    }
+
+    /**
+     * Tracing method specific to the file store.
+     *
+     * @param msg message to be logged.
+     */
+    private static void trace(String msg) {
+        Support.trc(Settings.isDiskCacheTrace(), "File Store", msg);
+    }
+}
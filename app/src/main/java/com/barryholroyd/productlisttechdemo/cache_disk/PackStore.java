@@ -0,0 +1,829 @@
+package com.barryholroyd.productlisttechdemo.cache_disk;
+
+import com.barryholroyd.productlisttechdemo.config.Settings;
+import com.barryholroyd.productlisttechdemo.metrics.Metrics;
+import com.barryholroyd.productlisttechdemo.support.Support;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk cache storage engine that appends images to a few large segment files.
+ * <p>
+ * With one file per image (FileStore), a large cache means tens of thousands of files
+ * in one directory: every write and delete updates directory metadata, and listing the
+ * directory at startup is slow. Here, images are appended to the current segment file
+ * ("pack-N") until it reaches SEGMENT_SIZE, when a new segment is started. Each image
+ * is stored as a record:
+ * <pre>
+ *     int nameLength, byte[nameLength] name (UTF-8), int dataLength, byte[dataLength] data
+ * </pre>
+ * The location of each image is kept in an index file ("pack.idx") that is memory-mapped
+ * and organized as an open-addressing hash table (linear probing) keyed by a 64-bit hash
+ * of the image's name. Lookups go straight to the mapped table instead of a map on the
+ * Java heap, and updates reach the file without any explicit writes. A slot is:
+ * <pre>
+ *     long hash (0: empty, 1: deleted), int segment, int offset, int recordLength, int dataLength,
+ *     short nameLength, byte[MAX_NAME_LENGTH] name (UTF-8)
+ * </pre>
+ * A slot only matches a name if both the hash and the name stored in the slot match, so
+ * names whose hashes collide get slots of their own and never replace, delete or read
+ * each other's images. The name stored in the record is checked again when the image is
+ * read.
+ * <p>
+ * Deleting an image only clears its slot. The space is reclaimed by maintain(), which
+ * compacts one segment at a time once less than COMPACT_PERCENT of it is still in use:
+ * the images still in use are appended to the current segment and the old segment file
+ * is deleted.
+ * <p>
+ * Images are read with positional FileChannel reads, without any lock held. If the
+ * segment is compacted away in the meantime, the read fails and is reported as a miss.
+ * Images are written without any lock held as well: the record's place in the segment
+ * is reserved under the lock, and the record is only added to the index, under the
+ * lock, once it has been written.
+ */
+final class PackStore implements DiskStore
+{
+    /** Prefix of segment file names. */
+    private static final String SEGMENT_PREFIX = "pack-";
+
+    /** Name of the index file. */
+    private static final String INDEX_FILE = "pack.idx";
+
+    /** Name of the index file while it is being rebuilt. */
+    private static final String INDEX_FILE_TMP = "pack.idx.tmp";
+
+    /** Size past which a new segment is started. */
+    private static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    /** A segment other than the current one is compacted once less than this percent is in use. */
+    private static final int COMPACT_PERCENT = 50;
+
+    /** Index header: magic number, version, capacity (number of slots), unused. */
+    private static final int INDEX_MAGIC = 0x50494458;
+    private static final int INDEX_VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+
+    /** Longest name (in UTF-8 bytes) that fits in an index slot. */
+    private static final int MAX_NAME_LENGTH = 46;
+
+    /** Size of an index slot. */
+    private static final int SLOT_SIZE = 24 + 2 + MAX_NAME_LENGTH;
+
+    /** Initial number of index slots (a power of two). */
+    private static final int INITIAL_CAPACITY = 4096;
+
+    /** Hash values marking empty and deleted slots. */
+    private static final long EMPTY = 0;
+    private static final long DELETED = 1;
+
+    /** Character set of the names. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Cache directory. */
+    private final File dir;
+
+    /** The memory-mapped index file. */
+    private MappedByteBuffer index;
+
+    /** Number of index slots (a power of two). */
+    private int capacity;
+
+    /** Number of slots in use or deleted; kept below half the capacity. */
+    private int used = 0;
+
+    /** Number of slots in use. */
+    private int live = 0;
+
+    /** Open segment files, by segment number. */
+    private final Map<Integer, FileChannel> segments = new HashMap<>();
+
+    /** Size and bytes in use ({size, live}) of each segment, by segment number. */
+    private final Map<Integer, long[]> segmentBytes = new HashMap<>();
+
+    /** Segment images are appended to; always the highest numbered one. */
+    private int current = 0;
+
+    /** Number of segments compacted. */
+    private final AtomicLong compactions = Metrics.counter("disk.pack.compactions");
+
+    /**
+     * Constructor. Opens the segments and the index found in the cache directory.
+     *
+     * @param _dir the cache directory (which must exist).
+     */
+    PackStore(File _dir) {
+        dir = _dir;
+        try {
+            openSegments();
+            openIndex();
+        }
+        catch (IOException ioe) {
+            throw new CacheDiskImageException(
+                    String.format("Could not open pack store: %s", ioe.getMessage()));
+        }
+        Metrics.register("disk.pack.segments", new Metrics.Gauge() {
+            public long value() { return getSegmentCount(); }
+        });
+        Metrics.register("disk.pack.bytes_dead", new Metrics.Gauge() {
+            public long value() { return getDeadBytes(); }
+        });
+    }
+
+    synchronized int getSegmentCount() { return segments.size(); }
+
+    synchronized long getDeadBytes() {
+        long dead = 0;
+        for (long[] bytes : segmentBytes.values()) {
+            dead += bytes[0] - bytes[1];
+        }
+        return dead;
+    }
+
+    @Override
+    public void write(String name, byte[] data) throws IOException {
+        byte[] nameBytes = name.getBytes(UTF8);
+        if (nameBytes.length > MAX_NAME_LENGTH) {
+            throw new IOException(String.format("Name too long for the pack index: %s", name));
+        }
+        int recordLength = 8 + nameBytes.length + data.length;
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.putInt(nameBytes.length).put(nameBytes).putInt(data.length).put(data);
+        record.flip();
+
+        // Start a new segment if the record doesn't fit. Only the writer appends.
+        boolean full;
+        synchronized (this) {
+            long size = segmentBytes.get(current)[0];
+            full = size > 0 && size + recordLength > SEGMENT_SIZE;
+        }
+        if (full) {
+            FileChannel channel = openChannel(current + 1);
+            synchronized (this) {
+                addSegment(current + 1, channel);
+                current++;
+            }
+        }
+
+        // Reserve the record's place, write it without the lock, then index it.
+        int segment;
+        int offset;
+        FileChannel channel;
+        synchronized (this) {
+            segment = current;
+            channel = segments.get(segment);
+            long[] bytes = segmentBytes.get(segment);
+            offset = (int) bytes[0];
+            bytes[0] += recordLength;
+        }
+        try {
+            writeFully(channel, record, offset);
+        }
+        catch (IOException ioe) {
+            synchronized (this) {
+                segmentBytes.get(segment)[0] = offset;
+            }
+            channel.truncate(offset);
+            throw ioe;
+        }
+        synchronized (this) {
+            put(hashOf(nameBytes), nameBytes, segment, offset, recordLength, data.length);
+        }
+    }
+
+    @Override
+    public byte[] read(String name) {
+        byte[] nameBytes = name.getBytes(UTF8);
+        FileChannel channel;
+        int offset;
+        int recordLength;
+        synchronized (this) {
+            int slot = lookup(hashOf(nameBytes), nameBytes);
+            if (slot < 0)
+                return null;
+            int pos = slotPos(slot);
+            channel = segments.get(index.getInt(pos + 8));
+            offset = index.getInt(pos + 12);
+            recordLength = index.getInt(pos + 16);
+        }
+        if (channel == null)
+            return null;
+
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        try {
+            readFully(channel, record, offset);
+        }
+        catch (IOException ioe) {
+            trace(String.format("Read failed (compacted?): %s", name));
+            return null;
+        }
+        record.flip();
+
+        int nameLength = record.getInt();
+        if (nameLength != nameBytes.length || 8 + nameLength > recordLength) {
+            trace(String.format("Hash collision: %s", name));
+            return null;
+        }
+        byte[] storedName = new byte[nameLength];
+        record.get(storedName);
+        if (!Arrays.equals(storedName, nameBytes)) {
+            trace(String.format("Hash collision: %s", name));
+            return null;
+        }
+        byte[] data = new byte[record.getInt()];
+        record.get(data);
+        return data;
+    }
+
+    @Override
+    public synchronized long size(String name) {
+        byte[] nameBytes = name.getBytes(UTF8);
+        int slot = lookup(hashOf(nameBytes), nameBytes);
+        return slot < 0 ? -1 : index.getInt(slotPos(slot) + 20);
+    }
+
+    @Override
+    public synchronized void delete(String name) {
+        byte[] nameBytes = name.getBytes(UTF8);
+        int slot = lookup(hashOf(nameBytes), nameBytes);
+        if (slot >= 0) {
+            remove(slot);
+        }
+    }
+
+    @Override
+    public void retainOnly(Set<String> names) {
+        synchronized (this) {
+            for (int slot = 0; slot < capacity; slot++) {
+                long hash = index.getLong(slotPos(slot));
+                if (hash != EMPTY && hash != DELETED && !names.contains(slotName(slot))) {
+                    remove(slot);
+                }
+            }
+        }
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (segmentNumber(name) < 0 && !name.equals(INDEX_FILE)
+                        && !DiskJournal.isJournalFile(name)) {
+                    trace(String.format("Deleting unrecognized file: %s", name));
+                    CacheDiskImage.deleteTree(f);
+                }
+            }
+        }
+
+        // Segments without any images in use can go right away.
+        for (Integer segment : segmentNumbers()) {
+            boolean empty;
+            synchronized (this) {
+                empty = segment != current && segmentBytes.get(segment)[1] == 0;
+            }
+            if (empty) {
+                dropSegment(segment);
+            }
+        }
+    }
+
+    /**
+     * Compact one segment, if there is one that is mostly unused.
+     */
+    @Override
+    public void maintain() {
+        int victim = -1;
+        synchronized (this) {
+            for (Map.Entry<Integer, long[]> e : segmentBytes.entrySet()) {
+                long[] bytes = e.getValue();
+                if (e.getKey() != current && bytes[1] * 100 < bytes[0] * COMPACT_PERCENT) {
+                    victim = e.getKey();
+                    break;
+                }
+            }
+        }
+        if (victim < 0)
+            return;
+
+        try {
+            compact(victim);
+        }
+        catch (IOException ioe) {
+            Support.loge(String.format(Locale.US, "Could not compact segment %d: %s",
+                    victim, ioe.getMessage()));
+        }
+    }
+
+    /**
+     * Copy the images still in use in a segment to the current segment, then delete it.
+     * <p>
+     * Only the disk writer appends or deletes, so an image found to be in use stays
+     * in use until it has been copied.
+     *
+     * @param segment the segment to compact.
+     * @throws IOException if the segment could not be read or the images written.
+     */
+    private void compact(int segment) throws IOException {
+        FileChannel channel;
+        long size;
+        long liveBytes;
+        synchronized (this) {
+            channel = segments.get(segment);
+            long[] bytes = segmentBytes.get(segment);
+            size = bytes[0];
+            liveBytes = bytes[1];
+        }
+        trace(String.format(Locale.US, "Compacting segment %d: %d of %d bytes in use.",
+                segment, liveBytes, size));
+
+        int copied = 0;
+        ByteBuffer header = ByteBuffer.allocate(4);
+        long pos = 0;
+        while (liveBytes > 0 && pos + 8 <= size) {
+            header.clear();
+            readFully(channel, header, pos);
+            header.flip();
+            int nameLength = header.getInt();
+            if (nameLength <= 0 || pos + 8 + nameLength > size)
+                break;   // unreadable; whatever follows was never indexed.
+
+            ByteBuffer nameAndLength = ByteBuffer.allocate(nameLength + 4);
+            readFully(channel, nameAndLength, pos + 4);
+            nameAndLength.flip();
+            byte[] nameBytes = new byte[nameLength];
+            nameAndLength.get(nameBytes);
+            int dataLength = nameAndLength.getInt();
+            int recordLength = 8 + nameLength + dataLength;
+            if (dataLength < 0 || pos + recordLength > size)
+                break;
+
+            String name = new String(nameBytes, UTF8);
+            boolean inUse;
+            synchronized (this) {
+                int slot = lookup(hashOf(nameBytes), nameBytes);
+                inUse = slot >= 0 && index.getInt(slotPos(slot) + 8) == segment
+                        && index.getInt(slotPos(slot) + 12) == pos;
+            }
+            if (inUse) {
+                ByteBuffer data = ByteBuffer.allocate(dataLength);
+                readFully(channel, data, pos + 8 + nameLength);
+                write(name, data.array());
+                liveBytes -= recordLength;
+                copied++;
+            }
+            pos += recordLength;
+        }
+
+        dropSegment(segment);
+        compactions.incrementAndGet();
+        trace(String.format(Locale.US, "Compacted segment %d: %d images copied.", segment, copied));
+    }
+
+    /**
+     * Delete a segment, along with any index slots still referring to it.
+     *
+     * @param segment the segment to delete.
+     */
+    private void dropSegment(int segment) {
+        FileChannel channel;
+        synchronized (this) {
+            for (int slot = 0; slot < capacity; slot++) {
+                int pos = slotPos(slot);
+                long hash = index.getLong(pos);
+                if (hash != EMPTY && hash != DELETED && index.getInt(pos + 8) == segment) {
+                    remove(slot);
+                }
+            }
+            channel = segments.remove(segment);
+            segmentBytes.remove(segment);
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+            catch (IOException ioe) {
+                Support.loge(String.format("Could not close segment: %s", ioe.getMessage()));
+            }
+        }
+        trace(String.format(Locale.US, "Deleting segment %d.", segment));
+        CacheDiskImage.deleteFile(new File(dir, SEGMENT_PREFIX + segment));
+    }
+
+    /**
+     * Close the segments and write the index out. The index stays mapped until the
+     * buffer is garbage collected (a mapping can't be released explicitly), but nothing
+     * writes to it any more.
+     */
+    @Override
+    public synchronized void close() {
+        index.force();
+        for (FileChannel channel : segments.values()) {
+            try {
+                channel.close();
+            }
+            catch (IOException ioe) {
+                Support.loge(String.format("Could not close segment: %s", ioe.getMessage()));
+            }
+        }
+        segments.clear();
+        segmentBytes.clear();
+    }
+
+    /**
+     * Open the existing segments, creating the first one if there are none.
+     *
+     * @throws IOException if a segment could not be opened.
+     */
+    private void openSegments() throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                int segment = segmentNumber(f.getName());
+                if (segment >= 0) {
+                    openSegment(segment);
+                    current = Math.max(current, segment);
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            openSegment(0);
+        }
+    }
+
+    /**
+     * Open (or create) a segment.
+     *
+     * @param segment the segment's number.
+     * @throws IOException if the segment could not be opened.
+     */
+    private void openSegment(int segment) throws IOException {
+        addSegment(segment, openChannel(segment));
+    }
+
+    /**
+     * Open (or create) a segment's file.
+     *
+     * @param segment the segment's number.
+     * @return the segment's file.
+     * @throws IOException if the file could not be opened.
+     */
+    private FileChannel openChannel(int segment) throws IOException {
+        return new RandomAccessFile(new File(dir, SEGMENT_PREFIX + segment), "rw").getChannel();
+    }
+
+    /**
+     * Start using an open segment. Called with the lock held (or from the constructor).
+     *
+     * @param segment the segment's number.
+     * @param channel the segment's file.
+     * @throws IOException if the segment's size could not be read.
+     */
+    private void addSegment(int segment, FileChannel channel) throws IOException {
+        segments.put(segment, channel);
+        segmentBytes.put(segment, new long[] { channel.size(), 0 });
+    }
+
+    /**
+     * Map the index file, creating a new, empty one if it is missing or unreadable, and
+     * count the bytes in use in each segment. Slots referring to missing segments or
+     * beyond the end of their segment are deleted.
+     *
+     * @throws IOException if the index could not be mapped.
+     */
+    private void openIndex() throws IOException {
+        File f = new File(dir, INDEX_FILE);
+        MappedByteBuffer mapped = null;
+        if (f.isFile() && f.length() >= HEADER_SIZE) {
+            mapped = map(f, f.length());
+            int cap = mapped.getInt(8);
+            if (mapped.getInt(0) != INDEX_MAGIC || mapped.getInt(4) != INDEX_VERSION
+                    || cap < INITIAL_CAPACITY || Integer.bitCount(cap) != 1
+                    || f.length() != HEADER_SIZE + (long) cap * SLOT_SIZE) {
+                trace("Unrecognized index; starting a new one.");
+                mapped = null;
+            }
+        }
+        if (mapped == null) {
+            mapped = createIndex(f, INITIAL_CAPACITY);
+        }
+        index = mapped;
+        capacity = index.getInt(8);
+
+        for (int slot = 0; slot < capacity; slot++) {
+            int pos = slotPos(slot);
+            long hash = index.getLong(pos);
+            if (hash == EMPTY)
+                continue;
+            used++;
+            if (hash == DELETED)
+                continue;
+            long[] bytes = segmentBytes.get(index.getInt(pos + 8));
+            int end = index.getInt(pos + 12) + index.getInt(pos + 16);
+            if (bytes == null || end > bytes[0]) {
+                index.putLong(pos, DELETED);
+                continue;
+            }
+            bytes[1] += index.getInt(pos + 16);
+            live++;
+        }
+        trace(String.format(Locale.US, "Opened pack store: %d segments, %d images.",
+                segments.size(), live));
+    }
+
+    /**
+     * Create an empty index file.
+     *
+     * @param f   the index file.
+     * @param cap number of slots.
+     * @return the mapped file.
+     * @throws IOException if the file could not be created.
+     */
+    private static MappedByteBuffer createIndex(File f, int cap) throws IOException {
+        if (f.exists()) {
+            CacheDiskImage.deleteFile(f);
+        }
+        MappedByteBuffer mapped = map(f, HEADER_SIZE + (long) cap * SLOT_SIZE);
+        mapped.putInt(0, INDEX_MAGIC);
+        mapped.putInt(4, INDEX_VERSION);
+        mapped.putInt(8, cap);
+        return mapped;
+    }
+
+    /**
+     * Map a file read/write, extending it to the given length.
+     *
+     * @param f      the file.
+     * @param length the file's length.
+     * @return the mapped file.
+     * @throws IOException if the file could not be mapped.
+     */
+    private static MappedByteBuffer map(File f, long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(length);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+    }
+
+    /**
+     * Find the slot for a name.
+     *
+     * @param hash the hash of the name.
+     * @param name the name (UTF-8).
+     * @return the slot; -1 if the name isn't in the index.
+     */
+    private int lookup(long hash, byte[] name) {
+        int mask = capacity - 1;
+        for (int slot = (int) (hash ^ (hash >>> 32)) & mask; ; slot = (slot + 1) & mask) {
+            long h = index.getLong(slotPos(slot));
+            if (h == hash && slotNameEquals(slot, name))
+                return slot;
+            if (h == EMPTY)
+                return -1;
+        }
+    }
+
+    /**
+     * Check whether a slot holds a name.
+     *
+     * @param slot the slot.
+     * @param name the name (UTF-8).
+     * @return true iff the slot's name is the name.
+     */
+    private boolean slotNameEquals(int slot, byte[] name) {
+        int pos = slotPos(slot) + 24;
+        if (index.getShort(pos) != name.length)
+            return false;
+        for (int i = 0; i < name.length; i++) {
+            if (index.get(pos + 2 + i) != name[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get the name held by a slot.
+     *
+     * @param slot the slot.
+     * @return the name.
+     */
+    private String slotName(int slot) {
+        int pos = slotPos(slot) + 24;
+        byte[] name = new byte[Math.max(0, Math.min(index.getShort(pos), MAX_NAME_LENGTH))];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = index.get(pos + 2 + i);
+        }
+        return new String(name, UTF8);
+    }
+
+    /**
+     * Record the location of an image, replacing any previous location.
+     *
+     * @param hash          hash of the image's name.
+     * @param name          the image's name (UTF-8); at most MAX_NAME_LENGTH bytes.
+     * @param segment       segment the image is in.
+     * @param offset        offset of the image's record in the segment.
+     * @param recordLength  length of the record.
+     * @param dataLength    length of the image.
+     * @throws IOException if the index had to grow and could not.
+     */
+    private void put(long hash, byte[] name, int segment, int offset, int recordLength,
+                     int dataLength) throws IOException {
+        int slot = lookup(hash, name);
+        if (slot >= 0) {
+            release(slot);
+        }
+        else {
+            if ((used + 1) * 2 > capacity) {
+                rehash();
+            }
+            int mask = capacity - 1;
+            slot = (int) (hash ^ (hash >>> 32)) & mask;
+            while (index.getLong(slotPos(slot)) != EMPTY
+                    && index.getLong(slotPos(slot)) != DELETED) {
+                slot = (slot + 1) & mask;
+            }
+            if (index.getLong(slotPos(slot)) == EMPTY) {
+                used++;
+            }
+            live++;
+        }
+        int pos = slotPos(slot);
+        index.putInt(pos + 8, segment);
+        index.putInt(pos + 12, offset);
+        index.putInt(pos + 16, recordLength);
+        index.putInt(pos + 20, dataLength);
+        index.putShort(pos + 24, (short) name.length);
+        for (int i = 0; i < name.length; i++) {
+            index.put(pos + 26 + i, name[i]);
+        }
+        index.putLong(pos, hash);
+        segmentBytes.get(segment)[1] += recordLength;
+    }
+
+    /**
+     * Delete an image's slot.
+     *
+     * @param slot the image's slot.
+     */
+    private void remove(int slot) {
+        release(slot);
+        index.putLong(slotPos(slot), DELETED);
+        live--;
+    }
+
+    /**
+     * Stop counting the bytes of a slot's record as in use.
+     *
+     * @param slot the slot.
+     */
+    private void release(int slot) {
+        int pos = slotPos(slot);
+        long[] bytes = segmentBytes.get(index.getInt(pos + 8));
+        if (bytes != null) {
+            bytes[1] -= index.getInt(pos + 16);
+        }
+    }
+
+    /**
+     * Rebuild the index without its deleted slots, doubling its capacity if more than
+     * a quarter of the slots are in use.
+     *
+     * @throws IOException if the new index could not be created.
+     */
+    private void rehash() throws IOException {
+        int cap = live * 4 > capacity ? capacity * 2 : capacity;
+        File tmp = new File(dir, INDEX_FILE_TMP);
+        MappedByteBuffer mapped = createIndex(tmp, cap);
+        int mask = cap - 1;
+        for (int slot = 0; slot < capacity; slot++) {
+            int pos = slotPos(slot);
+            long hash = index.getLong(pos);
+            if (hash == EMPTY || hash == DELETED)
+                continue;
+            int to = (int) (hash ^ (hash >>> 32)) & mask;
+            while (mapped.getLong(HEADER_SIZE + to * SLOT_SIZE) != EMPTY) {
+                to = (to + 1) & mask;
+            }
+            int toPos = HEADER_SIZE + to * SLOT_SIZE;
+            for (int i = 8; i < SLOT_SIZE; i++) {
+                mapped.put(toPos + i, index.get(pos + i));
+            }
+            mapped.putLong(toPos, hash);
+        }
+        mapped.force();
+        if (!tmp.renameTo(new File(dir, INDEX_FILE))) {
+            throw new IOException("Could not replace the pack index.");
+        }
+        trace(String.format(Locale.US, "Rebuilt index: %d -> %d slots, %d in use.",
+                capacity, cap, live));
+        index = mapped;
+        capacity = cap;
+        used = live;
+    }
+
+    /**
+     * Get the position of a slot in the index.
+     *
+     * @param slot the slot.
+     * @return the slot's position.
+     */
+    private static int slotPos(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * Get the 64-bit FNV-1a hash of a name, avoiding the values marking empty and
+     * deleted slots.
+     *
+     * @param name the name (UTF-8).
+     * @return the hash.
+     */
+    private static long hashOf(byte[] name) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : name) {
+            hash ^= (b & 0xff);
+            hash *= 0x100000001b3L;
+        }
+        return hash > DELETED || hash < 0 ? hash : hash + 2;
+    }
+
+    /**
+     * Get the segment number from a file name.
+     *
+     * @param name the file name.
+     * @return the segment number; -1 if it isn't a segment's file name.
+     */
+    private static int segmentNumber(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX))
+            return -1;
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+        }
+        catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /**
+     * Get the numbers of the open segments.
+     *
+     * @return the segment numbers.
+     */
+    private synchronized Set<Integer> segmentNumbers() {
+        return new HashSet<>(segments.keySet());
+    }
+
+    /**
+     * Write a whole buffer at a position.
+     *
+     * @param channel  the file.
+     * @param buf      the buffer.
+     * @param position the position in the file.
+     * @throws IOException if the write fails.
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    /**
+     * Fill a buffer from a position.
+     *
+     * @param channel  the file.
+     * @param buf      the buffer.
+     * @param position the position in the file.
+     * @throws IOException if the read fails or reaches the end of the file.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of segment.");
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * Tracing method specific to the pack store.
+     *
+     * @param msg message to be logged.
+     */
+    private static void trace(String msg) {
+        Support.trc(Settings.isDiskCacheTrace(), "Pack Store", msg);
+    }
+}
@@ -1,11 +1,17 @@
 package com.barryholroyd.productlisttechdemo.cache_memory;
 
 import com.barryholroyd.productlisttechdemo.config.Settings;
+import com.barryholroyd.productlisttechdemo.metrics.Metrics;
 import com.barryholroyd.productlisttechdemo.support.Support;
 
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Cache objects in memory.
@@ -23,36 +29,137 @@ import java.util.Locale;
  * I used ideas from LruCache for this implementation. I wrote my own cache
  * implementation just for the practice.
  * <p>
- * LinkedHashMap could not be used for the internal hash map because it
- * doesn't allow multiple "oldest" entries to be identified and removed
- * for a single put request (i.e., for those situations where the item to
- * be inserted in the list is larger than the item to be removed from the
- * list and the list is currently at its absolute maximum, in terms of bytes).
+ * Concurrency: the image loader hits the cache from many worker threads at once,
+ * so the cache is split into lock-striped segments and a single byte budget is
+ * shared by all of them.
+ * <ul>
+ *     <li>Lookups go through a ConcurrentHashMap and never block. A hit is recorded
+ *         in the segment's read buffer; the buffer is applied to the segment's LRU
+ *         order whenever the segment lock can be taken without waiting. Only
+ *         getAndRetain() locks the key's segment on a hit, briefly, so that the value
+ *         can't be evicted before it has been retained.
+ *     <li>Writers only lock the segment that the key hashes to, so writers for
+ *         different segments don't contend.
+ *     <li>Eviction runs under its own lock. It picks, from the least recently used
+ *         end of each segment, the entry that was accessed longest ago.
+ * </ul>
+ * A concurrency level of 1 gives a single, strictly ordered LRU list.
+ * <p>
+ * Admission: with the default LRU policy every new entry is admitted. With the TinyLFU
+ * policy, a compact frequency sketch counts every lookup and, when the cache is full,
+ * a new entry is only admitted if it has been looked up at least as often as the
+ * entry it would displace. A quick scan through many one-off entries (e.g., a fast
+ * fling through the list) then can't push out the entries that are used again and again.
+ * Hit and miss counts are kept separately for each policy so they can be compared.
+ * <p>
+ * Eviction: sizes are accounted exactly and two watermarks (percentages of the maximum
+ * size) control eviction. An add() always evicts exactly as much as is needed to stay
+ * within the maximum size. In addition, once the cache grows past the high watermark,
+ * each add() evicts a bounded batch of entries towards the low watermark, so that
+ * room is made ahead of time without ever evicting below the low watermark. With both
+ * watermarks at 100%, only the entries that must go are evicted.
+ * <p>
+ * Each segment keeps its entries in an access-ordered LinkedHashMap, so get(), add()
+ * and each eviction are all O(1) (O(segments) to choose the eviction victim).
+ * LinkedHashMap.removeEldestEntry() is not used because it only allows a single
+ * "oldest" entry to be removed for each put request; instead, we remove as many
+ * entries as are needed to make room (i.e., for those situations where the item to
+ * be inserted is larger than the item being removed and the cache is currently at
+ * its absolute maximum, in terms of bytes).
  */
 public class CacheMemoryBlob<K,V>
 {
-    /** Internal key/value mapping for cache storage. */
-    final private HashMap<K,V> bcmHm  = new HashMap<>();
-
-    /** First in / first out tracking for deleting cache entries. */
-    final private LinkedList<K> bcmLl = new LinkedList<>();
+    /** Policies for deciding whether a new entry may displace existing entries. */
+    public enum AdmissionPolicy {
+        /** Always admit; evict the least recently used entries. */
+        LRU,
+        /** Admit only if the new entry is used at least as often as the LRU victim. */
+        TINY_LFU
+    }
 
     /**
-     * When we need to make room in the cache, we'll make enough for at least this many
-     * additional images the size of the one being added.
+     * Internal key/value mapping for cache storage. Reads don't lock;
+     * updates are made while holding the lock of the key's segment.
      */
-    private static final int IMAGE_SIZE_MULTIPLIER = 10;
+    final private ConcurrentHashMap<K,Node<K,V>> bcmHm;
+
+    /** Lock-striped segments, each tracking the LRU order of its own keys. */
+    final private Segment<K,V>[] segments;
+
+    /** Serializes eviction across segments. */
+    final private ReentrantLock evictionLock = new ReentrantLock();
+
+    /** Maximum number of entries evicted per add() when working towards the low watermark. */
+    private static final int EVICTION_BATCH_SIZE = 8;
+
+    /** Maximum number of reads buffered per segment before further reads are dropped. */
+    private static final int READ_BUFFER_SIZE = 64;
 
     /** Maximum size of the cache in bytes. */
-    private long maxCacheSize = 0;
+    private volatile long maxCacheSize = 0;
+
+    /** Maximum size set by resize() (or the constructor), before any trimming. */
+    private volatile long configuredSize = 0;
+
+    /** Percentage of the configured size in use; lowered under memory pressure. */
+    private volatile int trimPercent = 100;
 
     /** Current cache size in bytes. */
-    private long currentCacheSize;
+    final private AtomicLong currentCacheSize = new AtomicLong();
+
+    /** Largest size the cache has reached, in bytes. */
+    final private AtomicLong peakCacheSize = new AtomicLong();
+
+    /** Past this percentage of the maximum size, eviction works ahead in batches. */
+    private volatile int highWatermark = 100;
+
+    /** Batched eviction stops at this percentage of the maximum size. */
+    private volatile int lowWatermark = 100;
+
+    /** Admission policy in effect. */
+    private volatile AdmissionPolicy admissionPolicy = AdmissionPolicy.LRU;
+
+    /**
+     * Frequency of recent lookups, by key. Updated under both policies, so that
+     * switching to TinyLFU starts with useful counts.
+     */
+    final private FrequencySketch<K> sketch = new FrequencySketch<>(0);
+
+    /** Hits, indexed by the ordinal of the policy in effect at the time. */
+    final private AtomicLong[] hits = newCounters();
+
+    /** Misses, indexed by the ordinal of the policy in effect at the time. */
+    final private AtomicLong[] misses = newCounters();
+
+    /** Number of entries evicted. */
+    final private AtomicLong evictions = new AtomicLong();
 
     /** Create new instances using factory methods. */
     CacheMemoryBlob(long _maxCacheSize) {
+        this(_maxCacheSize, 1);
+    }
+
+    /**
+     * Create a cache whose keys are spread over a number of independently locked segments.
+     *
+     * @param _maxCacheSize     maximum size of the cache.
+     * @param concurrencyLevel  number of segments; rounded up to a power of two.
+     */
+    @SuppressWarnings("unchecked")
+    CacheMemoryBlob(long _maxCacheSize, int concurrencyLevel) {
+        int n = 1;
+        while (n < concurrencyLevel) {
+            n <<= 1;
+        }
+        segments = new Segment[n];
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment<>();
+        }
+        bcmHm = new ConcurrentHashMap<>(16, 0.75f, n);
         maxCacheSize = _maxCacheSize;
-        trace(String.format(Locale.US, "Setting maximum memory cache size: %d", maxCacheSize));
+        configuredSize = _maxCacheSize;
+        trace(String.format(Locale.US, "Setting maximum memory cache size: %d (segments=%d)",
+                maxCacheSize, n));
     }
 
     /**
@@ -68,15 +175,95 @@ public class CacheMemoryBlob<K,V>
         return 1;
     }
 
+    /**
+     * Called after an entry has been evicted from the cache.
+     * <p>
+     * Does nothing by default. Subclasses can override this to recycle or
+     * otherwise reuse the evicted value. No cache locks are held during the call.
+     *
+     * @param key the key of the evicted entry.
+     * @param val the value of the evicted entry.
+     */
+    protected void entryRemoved(K key, V val) {
+    }
+
+    /**
+     * Called by getAndRetain() on a hit, with the key's segment locked, so that the value
+     * can't be evicted (and handed to entryRemoved()) before the call.
+     * <p>
+     * Does nothing by default. Subclasses whose evicted values are reused override this
+     * to mark the value as in use.
+     *
+     * @param key the key of the entry.
+     * @param val the value of the entry.
+     */
+    protected void entryRetained(K key, V val) {
+    }
+
     /**
      * Get the item, if it exists.
+     * <p>
+     * This never blocks: a hit is queued in the segment's read buffer and
+     * only applied to the LRU order if the segment lock is free.
      */
     public V get(K key) {
+        return get(key, false);
+    }
+
+    /**
+     * Get the item, if it exists, and call entryRetained() on it before it can be
+     * evicted. Unlike get(), this takes the key's segment lock on a hit.
+     */
+    public V getAndRetain(K key) {
+        return get(key, true);
+    }
+
+    /**
+     * Get the item, if it exists.
+     *
+     * @param key    the key of the item.
+     * @param retain whether to call entryRetained() on the item.
+     * @return the item; null if it isn't cached.
+     */
+    private V get(K key, boolean retain) {
         if (!Settings.isMemoryCacheOn())
             return null;
-        trace(String.format("Getting [%s]: %s",
-                bcmHm.containsKey(key) ? "found" : "not found", key));
-        return bcmHm.get(key);
+        Node<K,V> node = bcmHm.get(key);
+        trace(String.format("Getting [%s]: %s", node != null ? "found" : "not found", key));
+        sketch.increment(key);
+        int policy = admissionPolicy.ordinal();
+        if (node != null && retain) {
+            Segment<K,V> segment = segmentFor(key);
+            segment.lock.lock();
+            try {
+                // Evicted or removed since the lookup: no longer the cache's to hand out.
+                if (bcmHm.get(key) != node) {
+                    node = null;
+                }
+                else {
+                    entryRetained(key, node.val);
+                }
+            }
+            finally {
+                segment.lock.unlock();
+            }
+        }
+        if (node == null) {
+            misses[policy].incrementAndGet();
+            return null;
+        }
+        hits[policy].incrementAndGet();
+        node.accessTime = System.nanoTime();
+        segmentFor(key).recordRead(node);
+        return node.val;
+    }
+
+    /**
+     * Check whether the item exists, without counting a hit or a miss or marking it
+     * as recently used (e.g., to decide whether to prefetch it).
+     */
+    public boolean contains(K key) {
+        return Settings.isMemoryCacheOn() && bcmHm.containsKey(key);
     }
 
     /**
@@ -84,7 +271,7 @@ public class CacheMemoryBlob<K,V>
      * <p>
      * Ignore the request if the key is already present.
      */
-    public synchronized void add(K key, V val) {
+    public void add(K key, V val) {
         if (!Settings.isMemoryCacheOn())
             return;
 
@@ -106,33 +293,483 @@ public class CacheMemoryBlob<K,V>
 	    }
 
         long valSize = sizeOf(key, val);
+        if (valSize > maxCacheSize) {
+            trace(String.format(Locale.US, "[Larger than the cache (%d bytes), not added: %s]",
+                    valSize, key));
+            return;
+        }
 
-        // Clear cache entries, if necessary.
-        if ((currentCacheSize + valSize) > maxCacheSize) {
-            while ((currentCacheSize + (valSize * IMAGE_SIZE_MULTIPLIER)) > maxCacheSize) {
-                if (bcmLl.isEmpty()) {
+        // Clear exactly as many cache entries as needed (if the new entry is worth it).
+        if ((currentCacheSize.get() + valSize) > maxCacheSize) {
+            if (admissionPolicy == AdmissionPolicy.TINY_LFU && !admit(key)) {
+                trace(String.format("[Not admitted (used less than the LRU entry): %s]", key));
+                return;
+            }
+            evict(maxCacheSize - valSize, Integer.MAX_VALUE);
+        }
+
+	    // Add to the cache (as the most recently used entry of its segment).
+        Segment<K,V> segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            if (bcmHm.containsKey(key)) {
+                trace(String.format("[Already added this key (returning): %s]", key));
+                return;
+            }
+            Node<K,V> node = new Node<>(key, val, valSize);
+            bcmHm.put(key, node);
+            segment.lru.put(key, node);
+            updatePeak(currentCacheSize.addAndGet(valSize));
+        }
+        finally {
+            segment.lock.unlock();
+        }
+        sketch.ensureCapacity(bcmHm.size());
+
+        /*
+         * Concurrent writers may have pushed us over the shared budget between
+         * making room and inserting; enforce the hard limit.
+         */
+        if (currentCacheSize.get() > maxCacheSize) {
+            evict(maxCacheSize, Integer.MAX_VALUE);
+        }
+
+        // Past the high watermark: evict one batch towards the low watermark.
+        if (currentCacheSize.get() > maxCacheSize * highWatermark / 100) {
+            evict(maxCacheSize * lowWatermark / 100, EVICTION_BATCH_SIZE);
+        }
+    }
+
+    /**
+     * Remove the item, if it exists.
+     * <p>
+     * entryRemoved() isn't called: the value is handed back to the caller.
+     *
+     * @param key the key of the item to be removed.
+     * @return the removed value; null if the key wasn't present.
+     */
+    public V remove(K key) {
+        Segment<K,V> segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            Node<K,V> node = bcmHm.remove(key);
+            if (node == null) {
+                return null;
+            }
+            segment.lru.remove(key);
+            currentCacheSize.addAndGet(-node.size);
+            trace(String.format("Removed: %s", key));
+            return node.val;
+        }
+        finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Record a new peak size, if it is one.
+     *
+     * @param size current size of the cache.
+     */
+    private void updatePeak(long size) {
+        long peak;
+        while (size > (peak = peakCacheSize.get())) {
+            if (peakCacheSize.compareAndSet(peak, size)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * TinyLFU admission test: compare the candidate's lookup frequency with that of
+     * the entry which would be evicted first. If the candidate loses, the victim is
+     * promoted, so that the next candidate is compared with the next entry in line.
+     *
+     * @param key the key of the entry to be added.
+     * @return true iff the candidate should be added.
+     */
+    private boolean admit(K key) {
+        evictionLock.lock();
+        try {
+            Segment<K,V> victimSegment = victimSegment();
+            if (victimSegment == null) {
+                return true;
+            }
+            victimSegment.lock.lock();
+            try {
+                Node<K,V> victim = victimSegment.eldest();
+                if (victim == null) {
+                    return true;
+                }
+                if (sketch.frequency(key) >= sketch.frequency(victim.key)) {
+                    return true;
+                }
+                victimSegment.lru.get(victim.key);
+                victim.accessTime = System.nanoTime();
+                return false;
+            }
+            finally {
+                victimSegment.lock.unlock();
+            }
+        }
+        finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Evict least recently used entries until the cache is no larger than the target size
+     * or the maximum number of entries has been evicted.
+     *
+     * @param targetSize  size, in bytes, to shrink the cache to.
+     * @param maxEntries  maximum number of entries to evict.
+     */
+    private void evict(long targetSize, int maxEntries) {
+        evictionLock.lock();
+        try {
+            for (int evicted = 0;
+                 evicted < maxEntries && currentCacheSize.get() > Math.max(targetSize, 0);
+                 evicted++) {
+                if (!evictOne()) {
                     break;
                 }
+            }
+        }
+        finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Evict the least recently used entry across all segments.
+     * Called with the eviction lock held.
+     *
+     * @return false iff the cache is empty.
+     */
+    private boolean evictOne() {
+        Segment<K,V> victimSegment = victimSegment();
+        if (victimSegment == null) {
+            return false;
+        }
+
+        Node<K,V> eldest;
+        victimSegment.lock.lock();
+        try {
+            eldest = victimSegment.eldest();
+            if (eldest == null) {
+                return true; // emptied in the meantime; let the caller re-check
+            }
+            victimSegment.lru.remove(eldest.key);
+            bcmHm.remove(eldest.key);
+            long before = currentCacheSize.getAndAdd(-eldest.size);
+            evictions.incrementAndGet();
+            trace(String.format(Locale.US, "Removing: %s (oldCacheSize-imageSize=newCacheSize: %d-%d=%d).",
+                    eldest.key, before, eldest.size, before - eldest.size));
+        }
+        finally {
+            victimSegment.lock.unlock();
+        }
+        entryRemoved(eldest.key, eldest.val);
+        return true;
+    }
+
+    /**
+     * Find the segment whose least recently used entry was accessed longest ago.
+     * Called with the eviction lock held.
+     *
+     * @return the segment holding the next eviction victim; null if the cache is empty.
+     */
+    private Segment<K,V> victimSegment() {
+        Segment<K,V> victimSegment = null;
+        long oldest = Long.MAX_VALUE;
+        for (Segment<K,V> segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.drainReads();
+                Node<K,V> eldest = segment.eldest();
+                if (eldest != null && eldest.accessTime <= oldest) {
+                    oldest = eldest.accessTime;
+                    victimSegment = segment;
+                }
+            }
+            finally {
+                segment.lock.unlock();
+            }
+        }
+        return victimSegment;
+    }
+
+    /**
+     * Set the admission policy. Entries already cached are kept.
+     *
+     * @param policy the new admission policy.
+     */
+    public void setAdmissionPolicy(AdmissionPolicy policy) {
+        if (policy != admissionPolicy) {
+            trace(String.format("Admission policy: %s -> %s (%s)",
+                    admissionPolicy, policy, getHitRateReport()));
+            admissionPolicy = policy;
+        }
+    }
+
+    /**
+     * Change the maximum size of the cache, keeping its contents.
+     * <p>
+     * When the cache shrinks, the least recently used entries are evicted until it
+     * fits. This is done in batches, releasing the eviction lock between them, so
+     * lookups and adds carry on while a large cache is trimmed.
+     * <p>
+     * If the cache is currently trimmed, the same percentage is applied to the new size.
+     *
+     * @param bytes new maximum size of the cache.
+     */
+    public void resize(long bytes) {
+        if (bytes <= 0) {
+            throw new CacheMemoryBlobException("invalid cache size.");
+        }
+        configuredSize = bytes;
+        setMaxSize(trimmedSize());
+    }
+
+    /**
+     * Limit the cache to a percentage of its configured size (e.g., under memory
+     * pressure), evicting the least recently used entries as needed. 100 restores
+     * the full size; the cache then refills as entries are added.
+     *
+     * @param percent percentage of the configured size to allow.
+     */
+    public void trim(int percent) {
+        trimPercent = Math.max(0, Math.min(percent, 100));
+        setMaxSize(trimmedSize());
+    }
+
+    /**
+     * Configured size reduced by the current trim percentage. Never 0,
+     * since the cache must have a size; a 1-byte cache holds nothing.
+     */
+    private long trimmedSize() {
+        return Math.max(1, configuredSize * trimPercent / 100);
+    }
+
+    /**
+     * Set the maximum size, evicting in batches until the cache fits.
+     *
+     * @param bytes new maximum size of the cache.
+     */
+    private void setMaxSize(long bytes) {
+        trace(String.format(Locale.US, "Resizing memory cache: %d -> %d (current=%d)",
+                maxCacheSize, bytes, currentCacheSize.get()));
+        maxCacheSize = bytes;
+
+        long size;
+        while ((size = currentCacheSize.get()) > maxCacheSize) {
+            evict(maxCacheSize, EVICTION_BATCH_SIZE);
+            if (currentCacheSize.get() == size) {
+                break; // nothing left to evict
+            }
+        }
+    }
+
+    /**
+     * Set the eviction watermarks.
+     *
+     * @param high percentage of the maximum size past which eviction works ahead.
+     * @param low  percentage of the maximum size at which working ahead stops;
+     *             capped at the high watermark.
+     */
+    public void setWatermarks(int high, int low) {
+        highWatermark = Math.max(0, Math.min(high, 100));
+        lowWatermark = Math.max(0, Math.min(low, highWatermark));
+        trace(String.format(Locale.US, "Setting watermarks: high=%d%% low=%d%%",
+                highWatermark, lowWatermark));
+    }
+
+    /*
+     * Getters.
+     */
+    public long getMaxSize() { return maxCacheSize; }
+    public long getCurrentSize() { return currentCacheSize.get(); }
+    public long getPeakSize() { return peakCacheSize.get(); }
+    public AdmissionPolicy getAdmissionPolicy() { return admissionPolicy; }
+    public long getHits(AdmissionPolicy policy) { return hits[policy.ordinal()].get(); }
+    public long getMisses(AdmissionPolicy policy) { return misses[policy.ordinal()].get(); }
+    public long getEvictions() { return evictions.get(); }
+    public int getEntryCount() { return bcmHm.size(); }
+
+    /** Hits under all policies. */
+    public long getHits() {
+        long total = 0;
+        for (AtomicLong h : hits)
+            total += h.get();
+        return total;
+    }
 
-                K lastKey = bcmLl.removeLast();
-                if (lastKey == null) {
-                    throw new CacheMemoryBlobException("null key when removing entries.");
+    /** Misses under all policies. */
+    public long getMisses() {
+        long total = 0;
+        for (AtomicLong m : misses)
+            total += m.get();
+        return total;
+    }
+
+    /**
+     * Publish this cache's hits, misses, evictions and sizes as gauges in the
+     * metrics registry, named "tier.hits", "tier.misses" and so on. Hits and misses
+     * are also published for each admission policy ("tier.hits.lru",
+     * "tier.misses.tiny_lfu" and so on), so that the policies can be compared.
+     *
+     * @param tier name of the cache tier (e.g., "memory").
+     */
+    public void registerMetrics(String tier) {
+        Metrics.register(tier + ".hits", new Metrics.Gauge() {
+            public long value() { return getHits(); }
+        });
+        Metrics.register(tier + ".misses", new Metrics.Gauge() {
+            public long value() { return getMisses(); }
+        });
+        for (final AdmissionPolicy policy : AdmissionPolicy.values()) {
+            String suffix = "." + policy.name().toLowerCase(Locale.US);
+            Metrics.register(tier + ".hits" + suffix, new Metrics.Gauge() {
+                public long value() { return getHits(policy); }
+            });
+            Metrics.register(tier + ".misses" + suffix, new Metrics.Gauge() {
+                public long value() { return getMisses(policy); }
+            });
+        }
+        Metrics.register(tier + ".evictions", new Metrics.Gauge() {
+            public long value() { return getEvictions(); }
+        });
+        Metrics.register(tier + ".entries", new Metrics.Gauge() {
+            public long value() { return getEntryCount(); }
+        });
+        Metrics.register(tier + ".bytes", new Metrics.Gauge() {
+            public long value() { return getCurrentSize(); }
+        });
+        Metrics.register(tier + ".bytes_peak", new Metrics.Gauge() {
+            public long value() { return getPeakSize(); }
+        });
+        Metrics.register(tier + ".bytes_max", new Metrics.Gauge() {
+            public long value() { return getMaxSize(); }
+        });
+    }
+
+    /**
+     * Hit rate while the specified policy was in effect.
+     *
+     * @param policy the admission policy.
+     * @return hits / lookups, or 0 if there haven't been any lookups.
+     */
+    public double getHitRate(AdmissionPolicy policy) {
+        long h = getHits(policy);
+        long total = h + getMisses(policy);
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Summary of the hit rate under each policy.
+     *
+     * @return e.g., "LRU: 120/200 (60.0%), TINY_LFU: 0/0 (0.0%)".
+     */
+    public String getHitRateReport() {
+        StringBuilder sb = new StringBuilder();
+        for (AdmissionPolicy policy : AdmissionPolicy.values()) {
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(String.format(Locale.US, "%s: %d/%d (%.1f%%)", policy,
+                    getHits(policy), getHits(policy) + getMisses(policy),
+                    100 * getHitRate(policy)));
+        }
+        return sb.toString();
+    }
+
+    /** Create one counter per admission policy. */
+    private static AtomicLong[] newCounters() {
+        AtomicLong[] counters = new AtomicLong[AdmissionPolicy.values().length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new AtomicLong();
+        }
+        return counters;
+    }
+
+    /**
+     * Find the segment responsible for a key.
+     *
+     * @param key the key of interest.
+     * @return the key's segment.
+     */
+    private Segment<K,V> segmentFor(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+
+    /**
+     * Cache entry. The size is computed once, when the entry is added, so that
+     * eviction doesn't have to call sizeOf() again.
+     */
+    private static class Node<K,V>
+    {
+        final K key;
+        final V val;
+        final long size;
+        /** Time of the last access (System.nanoTime()); used to choose between segments. */
+        volatile long accessTime;
+
+        Node(K _key, V _val, long _size) {
+            key = _key;
+            val = _val;
+            size = _size;
+            accessTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * One lock stripe: its own lock, the LRU order of its keys and a lossy
+     * buffer of reads that haven't been applied to that order yet.
+     */
+    private static class Segment<K,V>
+    {
+        final ReentrantLock lock = new ReentrantLock();
+
+        /** Access-ordered, so iteration starts with the least recently used entry. */
+        final LinkedHashMap<K,Node<K,V>> lru = new LinkedHashMap<>(16, 0.75f, true);
+
+        final ConcurrentLinkedQueue<Node<K,V>> readBuffer = new ConcurrentLinkedQueue<>();
+        final AtomicInteger readBufferSize = new AtomicInteger();
+
+        /**
+         * Record a cache hit without blocking. If the buffer is full the read is
+         * dropped; LRU order is a heuristic, so losing the occasional read is harmless.
+         */
+        void recordRead(Node<K,V> node) {
+            if (readBufferSize.get() < READ_BUFFER_SIZE) {
+                readBufferSize.incrementAndGet();
+                readBuffer.offer(node);
+            }
+            if (lock.tryLock()) {
+                try {
+                    drainReads();
+                }
+                finally {
+                    lock.unlock();
                 }
-                V lastVal = bcmHm.remove(lastKey);
-                long lastValSize = sizeOf(lastKey, lastVal);
-                trace(String.format(Locale.US, "Removing: %s (oldCacheSize-imageSize=newCacheSize: %d-%d=%d).",
-                        lastKey,
-                        currentCacheSize, lastValSize,
-                        currentCacheSize - lastValSize));
-                currentCacheSize -= lastValSize;
             }
         }
 
-        currentCacheSize += valSize;
+        /** Apply buffered reads to the LRU order. Called with the lock held. */
+        void drainReads() {
+            Node<K,V> node;
+            while ((node = readBuffer.poll()) != null) {
+                readBufferSize.decrementAndGet();
+                lru.get(node.key); // promotes the entry; no effect if it was evicted meanwhile
+            }
+        }
 
-	    // Add to the cache.
-        bcmHm.put(key, val);
-        bcmLl.add(key);
+        /** Least recently used entry of the segment. Called with the lock held. */
+        Node<K,V> eldest() {
+            Iterator<Node<K,V>> it = lru.values().iterator();
+            return it.hasNext() ? it.next() : null;
+        }
     }
 
     /**
@@ -0,0 +1,45 @@
+package com.barryholroyd.productlisttechdemo.cache_memory;
+
+import com.barryholroyd.productlisttechdemo.config.Settings;
+
+/**
+ * Memory cache of encoded (compressed) images, keyed by url.
+ * <p>
+ * This sits between the bitmap memory cache (CacheMemoryImage) and the disk cache.
+ * An encoded thumbnail is typically an order of magnitude smaller than its decoded
+ * ARGB_8888 bitmap, so the same amount of memory holds a much larger working set;
+ * a hit costs a decode, but no file read.
+ * <p>
+ * sizeOf() is overridden so that the maximum size is specified in bytes.
+ */
+public class CacheMemoryEncoded extends CacheMemoryBlob<String, byte[]> {
+    /** Number of lock stripes; see CacheMemoryImage. */
+    private static final int CONCURRENCY_LEVEL = 4 * Runtime.getRuntime().availableProcessors();
+
+    /** Private constructor. */
+    private CacheMemoryEncoded(long bytes) {
+        super(bytes, CONCURRENCY_LEVEL);
+        setWatermarks(Settings.getCacheHighWatermark(), Settings.getCacheLowWatermark());
+    }
+
+    /**
+     * Set the maximum cache size in bytes.
+     *
+     * @param maxCacheSize maximum cache size in bytes
+     */
+    public static CacheMemoryEncoded createWithBytes(long maxCacheSize) {
+        return new CacheMemoryEncoded(maxCacheSize);
+    }
+
+    /**
+     * Return the size of a specific cached item instance.
+     *
+     * @param key  the key for the image being stored.
+     * @param data the encoded image being stored.
+     * @return     the size of the encoded image being stored.
+     */
+    @Override
+    protected long sizeOf(String key, byte[] data) {
+        return data.length;
+    }
+}
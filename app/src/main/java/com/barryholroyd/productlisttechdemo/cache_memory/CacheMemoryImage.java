@@ -2,6 +2,9 @@ package com.barryholroyd.productlisttechdemo.cache_memory;
 
 import android.graphics.Bitmap;
 
+import com.barryholroyd.productlisttechdemo.bitmap.BitmapPool;
+import com.barryholroyd.productlisttechdemo.config.Settings;
+
 import java.util.Locale;
 
 /**
@@ -16,9 +19,32 @@ import java.util.Locale;
  * constructors would have the same signature and hence be indistinguishable).
  */
 public class CacheMemoryImage extends CacheMemoryBlob<String, Bitmap> {
+    /**
+     * Number of lock stripes. Images are loaded by many worker threads at once,
+     * so use a few stripes per core.
+     */
+    private static final int CONCURRENCY_LEVEL = 4 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The application's memory class (ActivityManager.getMemoryClass()) in bytes;
+     * 0 if it isn't known.
+     */
+    private static volatile long memoryClassBytes = 0;
+
     /** Private constructor. */
     private CacheMemoryImage(long bytes) {
-        super(bytes);
+        super(bytes, CONCURRENCY_LEVEL);
+        setAdmissionPolicy(getAdmissionPolicySetting());
+        setWatermarks(Settings.getCacheHighWatermark(), Settings.getCacheLowWatermark());
+    }
+
+    /**
+     * Get the admission policy selected in the user settings ("Memory Cache Policy").
+     *
+     * @return the admission policy to use for the image memory cache.
+     */
+    public static AdmissionPolicy getAdmissionPolicySetting() {
+        return Settings.isMemoryCacheTinyLfu() ? AdmissionPolicy.TINY_LFU : AdmissionPolicy.LRU;
     }
 
     /**
@@ -42,8 +68,32 @@ public class CacheMemoryImage extends CacheMemoryBlob<String, Bitmap> {
         return new CacheMemoryImage(maxCacheSize);
     }
 
+    /**
+     * Change the maximum cache size to a percentage of overall maximum memory,
+     * keeping the cache's contents.
+     *
+     * @param percent percentage of the available memory to use for
+     *                the memory cache.
+     * @see #resize(long)
+     */
+    public void resizeWithPercent(int percent) {
+        resize(convertPercentToBytes(percent));
+    }
+
+    /**
+     * Record the application's memory class, so that percentages are taken
+     * of the heap the system expects the app to use rather than the largest
+     * heap it could get.
+     *
+     * @param megabytes ActivityManager.getMemoryClass().
+     */
+    public static void setMemoryClass(int megabytes) {
+        memoryClassBytes = megabytes * 1024L * 1024L;
+    }
+
     /** Calculate the number of bytes for the cache based on a percentage
-     *  of the total available memory.
+     *  of the total available memory: the smaller of the maximum heap size
+     *  and the memory class, if known.
      *
      * @param percent percentage of the available memory to use for
      *                the memory cache.
@@ -51,6 +101,9 @@ public class CacheMemoryImage extends CacheMemoryBlob<String, Bitmap> {
      */
     private static long convertPercentToBytes(int percent) {
         long maxMemory = Runtime.getRuntime().maxMemory();
+        if (memoryClassBytes > 0) {
+            maxMemory = Math.min(maxMemory, memoryClassBytes);
+        }
         long maxCacheSize = (long) ((percent / 100f) * maxMemory);
 
         trace(String.format(Locale.US, "Calculating maximum cache size: %d (%d%% of %d)",
@@ -70,4 +123,28 @@ public class CacheMemoryImage extends CacheMemoryBlob<String, Bitmap> {
     protected long sizeOf(String key, Bitmap bm) {
         return bm.getByteCount();
     }
+
+    /**
+     * Hand evicted bitmaps to the bitmap pool so that later decodes can reuse them.
+     *
+     * @param key the key for the evicted bitmap.
+     * @param bm  the evicted bitmap.
+     */
+    @Override
+    protected void entryRemoved(String key, Bitmap bm) {
+        BitmapPool.instance.put(bm);
+    }
+
+    /**
+     * Retain a bitmap returned by getAndRetain(), so that if it is evicted the bitmap
+     * pool holds it back until it has been released, rather than reusing it for a decode
+     * while it is displayed.
+     *
+     * @param key the key for the bitmap.
+     * @param bm  the bitmap.
+     */
+    @Override
+    protected void entryRetained(String key, Bitmap bm) {
+        BitmapPool.instance.retain(bm);
+    }
 }
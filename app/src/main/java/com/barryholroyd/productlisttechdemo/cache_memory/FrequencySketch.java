@@ -0,0 +1,196 @@
+package com.barryholroyd.productlisttechdemo.cache_memory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Compact, approximate access-frequency counter (a count-min sketch of 4-bit counters)
+ * used by the TinyLFU admission policy.
+ * <p>
+ * Each key is counted in four counters, one from each of four rows; its estimated
+ * frequency is the smallest of them. Sixteen counters are packed in each long, so
+ * tracking a few thousand keys takes a few kilobytes.
+ * <p>
+ * Counters saturate at 15. Once the number of recorded accesses reaches ten times
+ * the width of the sketch, every counter is halved, so that frequencies reflect
+ * recent use rather than all-time use.
+ * <p>
+ * Updates are lock-free (compare-and-set on each word); the halving pass may race
+ * with concurrent increments, which only makes the estimates slightly less exact.
+ *
+ * @see <a href="https://arxiv.org/abs/1512.00727">TinyLFU: A Highly Efficient Cache Admission Policy</a>
+ */
+class FrequencySketch<K>
+{
+    /** Number of counters (rows) each key is counted in. */
+    private static final int DEPTH = 4;
+
+    /** Seeds used to derive a different hash for each row. */
+    private static final int[] SEEDS = { 0x97cb3127, 0x2b7d6d9b, 0x5bd1e995, 0x1b873593 };
+
+    /** Smallest number of counters per row. */
+    private static final int MIN_WIDTH = 256;
+
+    /**
+     * Counters, sixteen 4-bit counters per long; DEPTH rows of width() counters.
+     * The width is derived from the table, so that a reader never pairs a table with
+     * another table's width while the sketch grows.
+     */
+    private volatile AtomicLongArray table;
+
+    /** Accesses recorded since the counters were last halved. */
+    private final AtomicInteger samples = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param expectedEntries number of entries the cache is expected to hold.
+     */
+    FrequencySketch(int expectedEntries) {
+        allocate(expectedEntries);
+    }
+
+    /**
+     * Make sure the sketch is wide enough for the specified number of entries.
+     * The counts gathered so far are carried over to the wider sketch (see grow()).
+     *
+     * @param entries number of entries the cache currently holds.
+     */
+    void ensureCapacity(int entries) {
+        if (entries <= width(table))
+            return;
+        synchronized (this) {
+            if (entries > width(table)) {
+                grow(entries);
+            }
+        }
+    }
+
+    /**
+     * Record an access of the key.
+     *
+     * @param key the key accessed.
+     */
+    void increment(K key) {
+        AtomicLongArray t = table;
+        int w = width(t);
+        int hash = spread(key.hashCode());
+        for (int row = 0; row < DEPTH; row++) {
+            int counter = row * w + indexOf(hash, row, w);
+            int word = counter >>> 4;
+            int shift = (counter & 15) << 2;
+            long mask = 0xfL << shift;
+            while (true) {
+                long v = t.get(word);
+                if ((v & mask) == mask) {
+                    break; // saturated
+                }
+                if (t.compareAndSet(word, v, v + (1L << shift))) {
+                    break;
+                }
+            }
+        }
+        int n = samples.incrementAndGet();
+        // Only the thread that resets the sample count halves, so the counters halve once.
+        if (n >= 10 * w && samples.compareAndSet(n, 0)) {
+            halve(t);
+        }
+    }
+
+    /**
+     * Estimate how often the key has been accessed recently.
+     *
+     * @param key the key of interest.
+     * @return estimated frequency, 0 to 15.
+     */
+    int frequency(K key) {
+        AtomicLongArray t = table;
+        int w = width(t);
+        int hash = spread(key.hashCode());
+        int min = 15;
+        for (int row = 0; row < DEPTH; row++) {
+            int counter = row * w + indexOf(hash, row, w);
+            int count = (int) ((t.get(counter >>> 4) >>> ((counter & 15) << 2)) & 0xf);
+            min = Math.min(min, count);
+        }
+        return min;
+    }
+
+    /**
+     * Allocate a new, empty table.
+     *
+     * @param entries number of entries to size the table for.
+     */
+    private void allocate(int entries) {
+        int w = MIN_WIDTH;
+        while (w < entries) {
+            w <<= 1;
+        }
+        table = new AtomicLongArray((DEPTH * w) / 16);
+        samples.set(0);
+    }
+
+    /**
+     * Replace the table with a wider one, keeping the counts.
+     * <p>
+     * A key's counter in a row is its row hash masked to the width, so widening a row
+     * from w to a multiple of w moves the key from counter i to a counter j with
+     * j % w == i. Each new counter starts with the count of that old counter, so every
+     * key's estimate is unchanged. Increments made while the table is copied may be lost.
+     *
+     * @param entries number of entries to size the table for.
+     */
+    private void grow(int entries) {
+        AtomicLongArray old = table;
+        int oldWidth = width(old);
+        int w = oldWidth;
+        while (w < entries) {
+            w <<= 1;
+        }
+        AtomicLongArray t = new AtomicLongArray((DEPTH * w) / 16);
+        for (int row = 0; row < DEPTH; row++) {
+            for (int i = 0; i < w; i++) {
+                int from = row * oldWidth + (i & (oldWidth - 1));
+                long count = (old.get(from >>> 4) >>> ((from & 15) << 2)) & 0xf;
+                int to = row * w + i;
+                t.set(to >>> 4, t.get(to >>> 4) | (count << ((to & 15) << 2)));
+            }
+        }
+        table = t;
+    }
+
+    /** Number of counters per row of a table. */
+    private static int width(AtomicLongArray t) {
+        return (t.length() * 16) / DEPTH;
+    }
+
+    /**
+     * Halve every counter (the "reset" operation of TinyLFU). The caller has reset the
+     * sample count.
+     *
+     * @param t the table to age.
+     */
+    private void halve(AtomicLongArray t) {
+        for (int i = 0; i < t.length(); i++) {
+            long v;
+            do {
+                v = t.get(i);
+            } while (!t.compareAndSet(i, v, (v >>> 1) & 0x7777777777777777L));
+        }
+    }
+
+    /** Index of the key's counter in the specified row. */
+    private static int indexOf(int hash, int row, int w) {
+        int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+        h ^= (h >>> 15);
+        return h & (w - 1);
+    }
+
+    /** Spread the key's hash code so that nearby hash codes use unrelated counters. */
+    private static int spread(int h) {
+        h ^= (h >>> 16);
+        h *= 0x45d9f3b;
+        h ^= (h >>> 16);
+        return h;
+    }
+}
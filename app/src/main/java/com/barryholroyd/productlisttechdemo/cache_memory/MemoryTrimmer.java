@@ -0,0 +1,137 @@
+package com.barryholroyd.productlisttechdemo.cache_memory;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+import com.barryholroyd.productlisttechdemo.bitmap.BitmapPool;
+import com.barryholroyd.productlisttechdemo.config.Settings;
+import com.barryholroyd.productlisttechdemo.product_info.ImageLoader;
+import com.barryholroyd.productlisttechdemo.support.Support;
+
+import java.util.Locale;
+
+/**
+ * Shrink the image memory caches and the bitmap pool when the system is short of memory.
+ * <p>
+ * A process holding a large cache while in the background is one of the first the
+ * system kills. onTrimMemory() levels are mapped to the percentage of their configured
+ * sizes the memory caches and bitmap pool may keep; the more severe the pressure, the
+ * less they keep. restore() gives them back their full size once the app is in the
+ * foreground again.
+ * <p>
+ * The trimmer is registered with the application context, so that it outlives
+ * the individual activities.
+ */
+public class MemoryTrimmer implements ComponentCallbacks2
+{
+    /** Singleton; there is only one set of memory caches to trim. */
+    private static MemoryTrimmer instance = null;
+
+    /** Percentage of their size the caches currently keep. */
+    private static int currentPercent = 100;
+
+    /** Private constructor to prevent external instantiation. */
+    private MemoryTrimmer() {}
+
+    /**
+     * Register the trimmer (once) and record the app's memory class for the
+     * percentage-based cache size.
+     *
+     * @param ctx any Context; its application context is used.
+     */
+    public static synchronized void init(Context ctx) {
+        if (instance != null)
+            return;
+        Context appCtx = ctx.getApplicationContext();
+        ActivityManager am = (ActivityManager) appCtx.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am != null) {
+            CacheMemoryImage.setMemoryClass(am.getMemoryClass());
+        }
+        instance = new MemoryTrimmer();
+        appCtx.registerComponentCallbacks(instance);
+    }
+
+    /**
+     * Give the memory caches back their full configured size.
+     */
+    public static void restore() {
+        trim(100);
+    }
+
+    /**
+     * System callback: release memory according to the pressure level.
+     *
+     * @param level the ComponentCallbacks2.TRIM_MEMORY_* level.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        trace(String.format(Locale.US, "onTrimMemory(%d)", level));
+        trim(percentForLevel(level));
+    }
+
+    /** System callback: the whole system is low on memory; empty the caches. */
+    @Override
+    public void onLowMemory() {
+        trace("onLowMemory()");
+        trim(0);
+    }
+
+    /** System callback: not used. */
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {}
+
+    /**
+     * Percentage of their configured size the caches may keep at each pressure level.
+     * <p>
+     * The TRIM_MEMORY_RUNNING_* levels are sent while the app is in the foreground,
+     * so they trim more gently; the others are sent once the UI is hidden, where the
+     * cached images aren't needed until the user returns.
+     *
+     * @param level the ComponentCallbacks2.TRIM_MEMORY_* level.
+     * @return percentage of the configured size to keep.
+     */
+    private static int percentForLevel(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE)           return 0;
+        if (level >= TRIM_MEMORY_MODERATE)           return 10;
+        if (level >= TRIM_MEMORY_BACKGROUND)         return 25;
+        if (level >= TRIM_MEMORY_UI_HIDDEN)          return 50;
+        if (level >= TRIM_MEMORY_RUNNING_CRITICAL)   return 25;
+        if (level >= TRIM_MEMORY_RUNNING_LOW)        return 50;
+        if (level >= TRIM_MEMORY_RUNNING_MODERATE)   return 75;
+        return 100;
+    }
+
+    /**
+     * Limit the memory caches and the bitmap pool to a percentage of their
+     * configured sizes.
+     *
+     * @param percent percentage of the configured sizes to keep.
+     */
+    private static synchronized void trim(int percent) {
+        if (percent == currentPercent)
+            return;
+        trace(String.format(Locale.US, "Trimming memory caches: %d%% -> %d%%",
+                currentPercent, percent));
+        currentPercent = percent;
+        CacheMemoryImage cacheMemory = ImageLoader.cacheMemory;
+        if (cacheMemory != null) {
+            cacheMemory.trim(percent);
+        }
+        CacheMemoryEncoded cacheEncoded = ImageLoader.cacheEncoded;
+        if (cacheEncoded != null) {
+            cacheEncoded.trim(percent);
+        }
+        BitmapPool.instance.trim(percent);
+    }
+
+    /**
+     * Tracing method specific to memory trimming.
+     *
+     * @param msg message to be logged.
+     */
+    private static void trace(String msg) {
+        Support.trc(Settings.isMemoryCacheTrace(), "Memory Trim", msg);
+    }
+}
@@ -12,10 +12,12 @@ public final class Settings {
 
     /** Keys will be used as Strings for SharePreferences. */
     enum Keys {
-        APP_USE_THREADS, APP_TRACE, APP_TRACE_ALC, APP_TRACE_DETAILS, APP_DISPLAY_URL,
+        APP_TRACE, APP_TRACE_ALC, APP_TRACE_DETAILS, APP_DISPLAY_URL,
         MEMORY_CACHE_ON, MEMORY_CACHE_TRACE, MEMORY_CACHE_SIZE_APPROACH, MEMORY_CACHE_SIZE_PERCENT,
-        MEMORY_CACHE_SIZE,
-        DISK_CACHE_ON, DISK_CACHE_TRACE, DISK_CACHE_SIZE, DISK_CACHE_CLEAR,
+        MEMORY_CACHE_SIZE, MEMORY_CACHE_POLICY, BITMAP_POOL_SIZE, DECODE_POLICY, ENCODED_CACHE_SIZE,
+        DISK_CACHE_ON, DISK_CACHE_TRACE, DISK_CACHE_SIZE, DISK_CACHE_CLEAR, DISK_CACHE_QUEUE_FULL,
+        DISK_CACHE_STORE,
+        CACHE_HIGH_WATERMARK, CACHE_LOW_WATERMARK,
         IMAGE_LOADER_TRACE, NETWORK_TRACE
     }
 
@@ -30,7 +32,6 @@ public final class Settings {
         /*
          * NOTE: initial default values are set in preferences.xml.
          */
-        appUseThreads	        = calcAppUseThreads(sp);
         appTrace		        = sp.getBoolean(APP_TRACE.name(), true);
         appTraceAlc		        = sp.getBoolean(APP_TRACE_ALC.name(), false);
         appTraceDetails		    = sp.getBoolean(APP_TRACE_DETAILS.name(), false);
@@ -40,10 +41,18 @@ public final class Settings {
         memoryCacheByBytes      = calcMemoryCacheByBytes(sp);
         memoryCacheSizePercent	= calcMemoryCacheSizePercent(sp);
         memoryCacheSizeBytes    = calcMemoryCacheSizeBytes(sp);
+        memoryCacheTinyLfu      = calcMemoryCacheTinyLfu(sp);
+        bitmapPoolSizeBytes     = calcBitmapPoolSizeBytes(sp);
+        decodeCompact           = calcDecodeCompact(sp);
+        encodedCacheSizeBytes   = calcEncodedCacheSizeBytes(sp);
         diskCacheOn		        = sp.getBoolean(DISK_CACHE_ON.name(), true);
         diskCacheTrace		    = sp.getBoolean(DISK_CACHE_TRACE.name(), false);
         diskCacheSizeBytes	    = calcDiskCacheSizeBytes(sp);
-        diskCacheClear		    = sp.getBoolean(DISK_CACHE_CLEAR.name(), true);
+        diskCacheClear		    = sp.getBoolean(DISK_CACHE_CLEAR.name(), false);
+        diskCacheQueueBlock     = calcDiskCacheQueueBlock(sp);
+        diskCachePack           = calcDiskCachePack(sp);
+        cacheHighWatermark      = calcCacheHighWatermark(sp);
+        cacheLowWatermark       = calcCacheLowWatermark(sp);
         imageLoaderTrace	    = sp.getBoolean(IMAGE_LOADER_TRACE.name(), false);
         networkTrace		    = sp.getBoolean(NETWORK_TRACE.name(), false);
     }
@@ -52,10 +61,6 @@ public final class Settings {
      * Conversion routines that take a String key and return a value of the
      * desired type.
      */
-    static boolean calcAppUseThreads(SharedPreferences sp) {
-        return sp.getString(APP_USE_THREADS.name(), "Threads").equals("Threads");
-    }
-
     static boolean calcMemoryCacheByBytes(SharedPreferences sp) {
         return sp.getString(MEMORY_CACHE_SIZE_APPROACH.name(), "Bytes").equals("Bytes");
     }
@@ -68,10 +73,42 @@ public final class Settings {
         return readPrefInt(sp, MEMORY_CACHE_SIZE.name(), 2) * 1024 * 1024;
     }
 
+    static boolean calcMemoryCacheTinyLfu(SharedPreferences sp) {
+        return sp.getString(MEMORY_CACHE_POLICY.name(), "LRU").equals("TinyLFU");
+    }
+
+    static long calcBitmapPoolSizeBytes(SharedPreferences sp) {
+        return readPrefInt(sp, BITMAP_POOL_SIZE.name(), 2) * 1024 * 1024;
+    }
+
+    static boolean calcDecodeCompact(SharedPreferences sp) {
+        return sp.getString(DECODE_POLICY.name(), "Standard").equals("Compact");
+    }
+
+    static long calcEncodedCacheSizeBytes(SharedPreferences sp) {
+        return readPrefInt(sp, ENCODED_CACHE_SIZE.name(), 4) * 1024 * 1024;
+    }
+
     static int calcDiskCacheSizeBytes(SharedPreferences sp) {
         return readPrefInt(sp, DISK_CACHE_SIZE.name(), 50) * 1024 * 1024;
     }
 
+    static boolean calcDiskCacheQueueBlock(SharedPreferences sp) {
+        return sp.getString(DISK_CACHE_QUEUE_FULL.name(), "Drop").equals("Block");
+    }
+
+    static boolean calcDiskCachePack(SharedPreferences sp) {
+        return sp.getString(DISK_CACHE_STORE.name(), "Files").equals("Pack");
+    }
+
+    static int calcCacheHighWatermark(SharedPreferences sp) {
+        return readPrefInt(sp, CACHE_HIGH_WATERMARK.name(), 95);
+    }
+
+    static int calcCacheLowWatermark(SharedPreferences sp) {
+        return readPrefInt(sp, CACHE_LOW_WATERMARK.name(), 90);
+    }
+
     /*
      * The following method is necessary because the Preferences
      * menu system stores ints and floats as Strings (even though the
@@ -86,9 +123,6 @@ public final class Settings {
     /******************
      * App
      ******************/
-    /** If true, use Thread for image loading, otherwise use AsyncTask. */
-    static boolean appUseThreads = true;
-
     /** Tracing flag for app-level logging. */
     static boolean appTrace = true;
 
@@ -125,6 +159,31 @@ public final class Settings {
      */
     static long memoryCacheSizeBytes = 2*1024*1024;
 
+    /**
+     * Memory cache admission policy: if true, use TinyLFU (frequency-based admission)
+     * in front of LRU eviction; otherwise plain LRU.
+     */
+    static boolean memoryCacheTinyLfu = false;
+
+    /**
+     * Memory (in bytes) to allocate for the pool of reusable bitmaps.
+     * 0 turns bitmap reuse off.
+     */
+    static long bitmapPoolSizeBytes = 2*1024*1024;
+
+    /**
+     * Image decode policy: if true, decode images to exactly the size needed and
+     * JPEG images (which are opaque) as RGB_565; otherwise only scale down by powers
+     * of two and decode as ARGB_8888.
+     */
+    static boolean decodeCompact = false;
+
+    /**
+     * Memory (in bytes) to allocate for the cache of encoded (compressed) images,
+     * which sits between the bitmap memory cache and the disk cache.
+     */
+    static long encodedCacheSizeBytes = 4*1024*1024;
+
     /******************
      * Disk Cache
      ******************/
@@ -137,8 +196,32 @@ public final class Settings {
     /** Disk space (in bytes) to allocate for the disk cache. */
     static long diskCacheSizeBytes = 500000;
 
-    /** Clear the disk cache when the app starts up. */
-    static boolean diskCacheClear = true;
+    /**
+     * Clear the disk cache when the app starts up. Otherwise, the cache's
+     * journal is replayed and its images are reused.
+     */
+    static boolean diskCacheClear = false;
+
+    /**
+     * What to do when the disk cache's write queue is full: if true, the loader waits for
+     * room; otherwise the image isn't written to disk (it stays in the memory caches).
+     */
+    static boolean diskCacheQueueBlock = false;
+
+    /**
+     * Disk cache storage engine: if true, images are appended to a few large pack files;
+     * otherwise each image is stored in its own file. Takes effect when the app starts.
+     */
+    static boolean diskCachePack = false;
+
+    /******************
+     * Cache Eviction (memory and disk caches)
+     ******************/
+    /** Percent of a cache's maximum size past which eviction works ahead in batches. */
+    static int cacheHighWatermark = 95;
+
+    /** Percent of a cache's maximum size at which working ahead stops. */
+    static int cacheLowWatermark = 90;
 
     /******************
      * Miscellaneous
@@ -168,14 +251,18 @@ public final class Settings {
         return appTraceDetails;
     }
 
-    public static boolean isAppUseThreads() {
-        return appUseThreads;
-    }
-
     public static boolean isDiskCacheClear() {
         return diskCacheClear;
     }
 
+    public static boolean isDiskCacheQueueBlock() {
+        return diskCacheQueueBlock;
+    }
+
+    public static boolean isDiskCachePack() {
+        return diskCachePack;
+    }
+
     public static boolean isDiskCacheOn() {
         return diskCacheOn;
     }
@@ -188,6 +275,14 @@ public final class Settings {
         return diskCacheTrace;
     }
 
+    public static int getCacheHighWatermark() {
+        return cacheHighWatermark;
+    }
+
+    public static int getCacheLowWatermark() {
+        return cacheLowWatermark;
+    }
+
     public static boolean isImageLoaderTrace() {
         return imageLoaderTrace;
     }
@@ -208,6 +303,22 @@ public final class Settings {
         return memoryCacheSizePercent;
     }
 
+    public static boolean isMemoryCacheTinyLfu() {
+        return memoryCacheTinyLfu;
+    }
+
+    public static long getBitmapPoolSizeBytes() {
+        return bitmapPoolSizeBytes;
+    }
+
+    public static boolean isDecodeCompact() {
+        return decodeCompact;
+    }
+
+    public static long getEncodedCacheSizeBytes() {
+        return encodedCacheSizeBytes;
+    }
+
     public static boolean isMemoryCacheTrace() {
         return memoryCacheTrace;
     }
@@ -4,6 +4,7 @@ import android.app.Activity;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
+import com.barryholroyd.productlisttechdemo.bitmap.BitmapPool;
 import com.barryholroyd.productlisttechdemo.cache_disk.CacheDiskImage;
 import com.barryholroyd.productlisttechdemo.cache_memory.CacheMemoryImage;
 import com.barryholroyd.productlisttechdemo.product_info.ImageLoader;
@@ -41,6 +42,22 @@ public class SettingsManager {
         sp.registerOnSharedPreferenceChangeListener(onSharedPreferenceChangeListenerWm);
     }
 
+    /**
+     * Resize the image memory cache to match the current size settings.
+     * If the cache hasn't been created yet, it will pick the settings up when it is.
+     */
+    private static void resizeMemoryCache() {
+        CacheMemoryImage cacheMemory = ImageLoader.cacheMemory;
+        if (cacheMemory == null)
+            return;
+        if (Settings.isMemoryCacheByBytes()) {
+            cacheMemory.resize(Settings.getMemoryCacheSizeBytes());
+        }
+        else {
+            cacheMemory.resizeWithPercent(Settings.getMemoryCacheSizePercent());
+        }
+    }
+
     /**
      * Share preferences callback.
      *
@@ -54,9 +71,6 @@ public class SettingsManager {
         @Override
         public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
             switch (Settings.Keys.valueOf(key)) {
-                case APP_USE_THREADS:
-                    Settings.appUseThreads = calcAppUseThreads(sp);
-                    break;
                 case APP_TRACE:
                     Settings.appTrace = sp.getBoolean(key, true);
                     break;
@@ -75,24 +89,45 @@ public class SettingsManager {
                 case MEMORY_CACHE_TRACE:
                     Settings.memoryCacheTrace = sp.getBoolean(key, false);
                     break;
+                /*
+                 * Memory cache size changes resize the existing cache in place, so
+                 * that the images it already holds aren't thrown away.
+                 */
                 case MEMORY_CACHE_SIZE_APPROACH:
                     Settings.memoryCacheByBytes = calcMemoryCacheByBytes(sp);
-                    ImageLoader.cacheMemory = Settings.isMemoryCacheByBytes()
-                            ? CacheMemoryImage.createWithBytes(Settings.getMemoryCacheSizeBytes())
-                            : CacheMemoryImage.createWithPercent(Settings.getMemoryCacheSizePercent());
+                    resizeMemoryCache();
                     break;
                 case MEMORY_CACHE_SIZE_PERCENT:
                     Settings.memoryCacheSizePercent = Settings.calcMemoryCacheSizePercent(sp);
                     if (!Settings.isMemoryCacheByBytes()) {
-                        ImageLoader.cacheMemory = CacheMemoryImage.createWithPercent(
-                                memoryCacheSizePercent);
+                        resizeMemoryCache();
                     }
                     break;
                 case MEMORY_CACHE_SIZE:
                     Settings.memoryCacheSizeBytes = Settings.calcMemoryCacheSizeBytes(sp);
                     if (Settings.isMemoryCacheByBytes()) {
-                        ImageLoader.cacheMemory =
-                                CacheMemoryImage.createWithBytes(Settings.memoryCacheSizeBytes);
+                        resizeMemoryCache();
+                    }
+                    break;
+                case MEMORY_CACHE_POLICY:
+                    Settings.memoryCacheTinyLfu = Settings.calcMemoryCacheTinyLfu(sp);
+                    if (ImageLoader.cacheMemory != null) {
+                        ImageLoader.cacheMemory.setAdmissionPolicy(
+                                CacheMemoryImage.getAdmissionPolicySetting());
+                    }
+                    break;
+                case BITMAP_POOL_SIZE:
+                    Settings.bitmapPoolSizeBytes = Settings.calcBitmapPoolSizeBytes(sp);
+                    BitmapPool.instance.trimToSize();
+                    break;
+                case DECODE_POLICY:
+                    // Images already in the memory cache keep the size they were decoded at.
+                    Settings.decodeCompact = Settings.calcDecodeCompact(sp);
+                    break;
+                case ENCODED_CACHE_SIZE:
+                    Settings.encodedCacheSizeBytes = Settings.calcEncodedCacheSizeBytes(sp);
+                    if (ImageLoader.cacheEncoded != null) {
+                        ImageLoader.cacheEncoded.resize(Settings.encodedCacheSizeBytes);
                     }
                     break;
                 case DISK_CACHE_ON:
@@ -106,7 +141,29 @@ public class SettingsManager {
                     CacheDiskImage.setMaxCacheSize(Settings.diskCacheSizeBytes);
                     break;
                 case DISK_CACHE_CLEAR:
-                    Settings.diskCacheClear = sp.getBoolean(key, true);
+                    Settings.diskCacheClear = sp.getBoolean(key, false);
+                    break;
+                case DISK_CACHE_QUEUE_FULL:
+                    Settings.diskCacheQueueBlock = Settings.calcDiskCacheQueueBlock(sp);
+                    break;
+                case DISK_CACHE_STORE:
+                    // The cache already in use keeps its engine until the app restarts.
+                    Settings.diskCachePack = Settings.calcDiskCachePack(sp);
+                    break;
+                case CACHE_HIGH_WATERMARK:
+                case CACHE_LOW_WATERMARK:
+                    Settings.cacheHighWatermark = Settings.calcCacheHighWatermark(sp);
+                    Settings.cacheLowWatermark = Settings.calcCacheLowWatermark(sp);
+                    if (ImageLoader.cacheMemory != null) {
+                        ImageLoader.cacheMemory.setWatermarks(
+                                Settings.cacheHighWatermark, Settings.cacheLowWatermark);
+                    }
+                    if (ImageLoader.cacheEncoded != null) {
+                        ImageLoader.cacheEncoded.setWatermarks(
+                                Settings.cacheHighWatermark, Settings.cacheLowWatermark);
+                    }
+                    CacheDiskImage.setWatermarks(
+                            Settings.cacheHighWatermark, Settings.cacheLowWatermark);
                     break;
                 case IMAGE_LOADER_TRACE:
                     Settings.imageLoaderTrace = sp.getBoolean(key, false);
@@ -0,0 +1,104 @@
+package com.barryholroyd.productlisttechdemo.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram, in microseconds.
+ * <p>
+ * Bucket i counts values below 2^i microseconds (and at least 2^(i-1)), so percentiles
+ * are reported as the upper bound of the bucket they fall in: accurate to within a
+ * factor of two, which is enough to tell a memory hit from a disk read from a download.
+ * Recording is lock-free, so it can be done from any thread.
+ */
+public final class Histogram
+{
+    /** Number of buckets; the last one holds everything from about 18 minutes up. */
+    private static final int BUCKETS = 32;
+
+    /** Count of values in each bucket. */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    /** Number of values recorded. */
+    private final AtomicLong count = new AtomicLong();
+
+    /** Sum of the values recorded. */
+    private final AtomicLong sum = new AtomicLong();
+
+    /** Largest value recorded. */
+    private final AtomicLong max = new AtomicLong();
+
+    /** Create histograms through Metrics.histogram(). */
+    Histogram() {}
+
+    /**
+     * Record a value.
+     *
+     * @param micros the value, in microseconds.
+     */
+    public void record(long micros) {
+        micros = Math.max(micros, 0);
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long m;
+        while (micros > (m = max.get())) {
+            if (max.compareAndSet(m, micros)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Record the time elapsed since a starting point.
+     *
+     * @param startNanos the starting point, from System.nanoTime().
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /*
+     * Getters.
+     */
+    public long getCount() { return count.get(); }
+    public long getSum() { return sum.get(); }
+    public long getMax() { return max.get(); }
+
+    /**
+     * Approximate percentile.
+     *
+     * @param percent the percentile wanted, 0 to 100.
+     * @return upper bound, in microseconds, of the bucket holding the percentile;
+     *         0 if nothing has been recorded.
+     */
+    public long getPercentile(double percent) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long rank = (long) Math.ceil(n * percent / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(1L << i, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * One-line summary.
+     *
+     * @return e.g., "n=120 mean=850us p50<=1024us p90<=4096us p99<=16384us max=9000us".
+     */
+    @Override
+    public String toString() {
+        long n = count.get();
+        return String.format(Locale.US, "n=%d mean=%dus p50<=%dus p90<=%dus p99<=%dus max=%dus",
+                n, n == 0 ? 0 : sum.get() / n,
+                getPercentile(50), getPercentile(90), getPercentile(99), getMax());
+    }
+}
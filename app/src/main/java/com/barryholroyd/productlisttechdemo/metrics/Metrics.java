@@ -0,0 +1,129 @@
+package com.barryholroyd.productlisttechdemo.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of named metrics for the caches and loaders.
+ * <p>
+ * Three kinds of metrics are kept:
+ * <ul>
+ *     <li>counters, which the code being measured increments (e.g., requests started);
+ *     <li>gauges, which are read from their owner when a snapshot is taken (e.g., a
+ *         cache's hit count or current size), so the owner keeps its own bookkeeping;
+ *     <li>latency histograms (e.g., time to load an image from disk).
+ * </ul>
+ * Names are dotted, with the component first (e.g., "disk.hits", "load.network"),
+ * so that a sorted report groups each component's metrics together.
+ * <p>
+ * Metrics can be read through snapshot() and report(); MetricsActivity displays them.
+ */
+public final class Metrics
+{
+    /** A value that is read when a snapshot is taken. */
+    public interface Gauge {
+        long value();
+    }
+
+    /** Counters, by name. */
+    private static final ConcurrentHashMap<String,AtomicLong> counters = new ConcurrentHashMap<>();
+
+    /** Gauges, by name. */
+    private static final ConcurrentHashMap<String,Gauge> gauges = new ConcurrentHashMap<>();
+
+    /** Histograms, by name. */
+    private static final ConcurrentHashMap<String,Histogram> histograms = new ConcurrentHashMap<>();
+
+    /** Static methods only. */
+    private Metrics() {}
+
+    /**
+     * Get a counter, creating it if necessary.
+     *
+     * @param name the counter's name.
+     * @return the counter.
+     */
+    public static AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null)
+                counter = created;
+        }
+        return counter;
+    }
+
+    /**
+     * Get a histogram, creating it if necessary.
+     *
+     * @param name the histogram's name.
+     * @return the histogram.
+     */
+    public static Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null)
+                histogram = created;
+        }
+        return histogram;
+    }
+
+    /**
+     * Register a gauge, replacing any gauge already registered under the name.
+     *
+     * @param name  the gauge's name.
+     * @param gauge the gauge.
+     */
+    public static void register(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Current values of all counters and gauges.
+     *
+     * @return values, sorted by name.
+     */
+    public static SortedMap<String,Long> snapshot() {
+        SortedMap<String,Long> values = new TreeMap<>();
+        for (Map.Entry<String,AtomicLong> e : counters.entrySet()) {
+            values.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String,Gauge> e : gauges.entrySet()) {
+            values.put(e.getKey(), e.getValue().value());
+        }
+        return values;
+    }
+
+    /**
+     * Current histograms.
+     *
+     * @return histograms, sorted by name.
+     */
+    public static SortedMap<String,Histogram> histograms() {
+        return new TreeMap<String,Histogram>(histograms);
+    }
+
+    /**
+     * Human-readable report of all metrics: one line per counter or gauge,
+     * then one line per histogram.
+     *
+     * @return the report.
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String,Long> e : snapshot().entrySet()) {
+            sb.append(e.getKey()).append(" = ").append(e.getValue()).append('\n');
+        }
+        sb.append('\n');
+        for (Map.Entry<String,Histogram> e : histograms().entrySet()) {
+            sb.append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,37 @@
+package com.barryholroyd.productlisttechdemo.metrics;
+
+import android.os.Bundle;
+import android.support.v7.widget.Toolbar;
+import android.view.View;
+import android.widget.TextView;
+
+import com.barryholroyd.productlisttechdemo.R;
+import com.barryholroyd.productlisttechdemo.support.ActivityPrintStates;
+
+/**
+ * Debug screen displaying the current metrics (reached from the app bar menu).
+ */
+public class MetricsActivity extends ActivityPrintStates
+{
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.metrics);
+
+        Toolbar myToolbar = (Toolbar) findViewById(R.id.appbar);
+        setSupportActionBar(myToolbar);
+
+        refresh(null);
+    }
+
+    /**
+     * Callback method for the Refresh button: display the latest values.
+     *
+     * @param view the button which was pressed to call this callback (null when
+     *             called from onCreate()).
+     */
+    public void refresh(View view) {
+        TextView tv = (TextView) findViewById(R.id.metrics_text);
+        tv.setText(Metrics.report());
+    }
+}
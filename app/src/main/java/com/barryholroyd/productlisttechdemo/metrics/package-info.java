@@ -0,0 +1,4 @@
+/**
+ * Runtime metrics: counters, gauges and latency histograms, and a debug screen to view them.
+ */
+package com.barryholroyd.productlisttechdemo.metrics;
@@ -0,0 +1,82 @@
+package com.barryholroyd.productlisttechdemo.network;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Lets another thread abort a download.
+ * <p>
+ * NetworkSupport registers each connection it opens for the download; cancel()
+ * disconnects it, which makes a read blocked on it fail. Once cancelled, no further
+ * connections are opened, and NetworkSupport checks again once a connection has been
+ * made, since a connection registered before connecting may be cancelled while it
+ * connects.
+ * <p>
+ * Disconnecting can itself do network I/O (e.g., closing an HTTPS connection), and
+ * cancel() is called on the main thread, so the disconnect is run on a background
+ * thread of its own.
+ */
+public final class Cancellation
+{
+    /** Runs the disconnects. */
+    private static final Executor disconnector = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Network-disconnect");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /** Whether the download has been cancelled. */
+    private boolean cancelled = false;
+
+    /** The connection currently open for the download; null if none. */
+    private HttpURLConnection connection = null;
+
+    /**
+     * Cancel the download. Doesn't block: the connection, if any, is disconnected in
+     * the background.
+     *
+     * @return true if a connection was open (and is being disconnected).
+     */
+    public synchronized boolean cancel() {
+        cancelled = true;
+        if (connection == null)
+            return false;
+        final HttpURLConnection c = connection;
+        connection = null;
+        disconnector.execute(new Runnable() {
+            @Override
+            public void run() {
+                c.disconnect();
+            }
+        });
+        return true;
+    }
+
+    /** Whether the download has been cancelled. */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Register a connection about to be opened for the download.
+     *
+     * @param c the connection.
+     * @throws NetworkSupportException if the download has been cancelled.
+     */
+    synchronized void attach(HttpURLConnection c) throws NetworkSupportException {
+        if (cancelled)
+            throw new NetworkSupportException("Download cancelled.");
+        connection = c;
+    }
+
+    /** Forget the download's connection, once the download is over. */
+    synchronized void detach() {
+        connection = null;
+    }
+}
@@ -1,17 +1,21 @@
 package com.barryholroyd.productlisttechdemo.network;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 
+import com.barryholroyd.productlisttechdemo.bitmap.BitmapDecoder;
 import com.barryholroyd.productlisttechdemo.config.Settings;
 import com.barryholroyd.productlisttechdemo.support.Support;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.barryholroyd.productlisttechdemo.support.Support.truncImageString;
 
@@ -19,6 +23,45 @@ import static com.barryholroyd.productlisttechdemo.support.Support.truncImageStr
  * General network support.
  */
 public class NetworkSupport {
+    /** Largest image file downloaded; a larger one fails rather than exhausting memory. */
+    static final int MAX_IMAGE_SIZE = 8 * 1024 * 1024;
+
+    /** Decodes an image file held in a buffer. */
+    interface Decoder {
+        /**
+         * Decode an image file.
+         *
+         * @param data            buffer holding the image file.
+         * @param length          length of the image file (the rest of the buffer is unused).
+         * @param requestedHeight maximum height of the image (in pixels).
+         * @param requestedWidth  maximum width of the image (in pixels).
+         * @return the image; null if it couldn't be decoded.
+         */
+        Bitmap decode(byte[] data, int length, int requestedHeight, int requestedWidth);
+    }
+
+    /** Decoder used by Download.decode(). */
+    private static final Decoder bitmapDecoder = new Decoder() {
+        @Override
+        public Bitmap decode(byte[] data, int length, int requestedHeight, int requestedWidth) {
+            return BitmapDecoder.decode(data, length, requestedHeight, requestedWidth);
+        }
+    };
+
+    /** An image decoded by Download.decode(). */
+    public static final class Image {
+        /** The decoded image. */
+        public final Bitmap bitmap;
+
+        /** The image file as downloaded; null if it wasn't asked for. */
+        public final byte[] encoded;
+
+        Image(Bitmap _bitmap, byte[] _encoded) {
+            bitmap = _bitmap;
+            encoded = _encoded;
+        }
+    }
+
     /**
      * Get an input stream for the specified URL.
      *
@@ -26,22 +69,40 @@ public class NetworkSupport {
      * @return the input stream created to read data from the specified URL.
      */
     public static InputStream getInputStreamFromUrl(String urlStr)
+        throws NetworkSupportException {
+        return getInputStreamFromUrl(urlStr, null);
+    }
+
+    /**
+     * Get an input stream for the specified URL, which can be aborted.
+     *
+     * @param urlStr the URL (in String form) to read from.
+     * @param cancel aborts the read when cancelled; may be null.
+     * @return the input stream created to read data from the specified URL.
+     */
+    private static InputStream getInputStreamFromUrl(String urlStr, Cancellation cancel)
         throws NetworkSupportException {
         try {
             int response;
             URL url = new URL(urlStr);
             HttpURLConnection c = (HttpURLConnection) url.openConnection();
+            if (cancel != null) {
+                cancel.attach(c);
+            }
             c.setReadTimeout(10000); // ms
             c.setConnectTimeout(15000); // ms
             c.setRequestMethod("GET");
             c.setDoInput(true);
             c.connect();
+            checkCancelled(c, cancel);
             response = c.getResponseCode();
             if (response != 200) {
                 throw new NetworkSupportException(
                     String.format(Locale.US, "getInputStreamFromUrl() - bad response code: %d", response));
             }
-            return c.getInputStream();
+            InputStream is = c.getInputStream();
+            checkCancelled(c, cancel);
+            return is;
         }
         catch (MalformedURLException e) {
             throw new NetworkSupportException(
@@ -54,122 +115,135 @@ public class NetworkSupport {
     }
 
     /**
-     * Get a bitmap from the network.
+     * Disconnect a connection if its download has been cancelled. The connection is
+     * registered with the Cancellation before connect(), and a disconnect that runs
+     * before connect() has finished doesn't stop it from opening the connection.
+     *
+     * @param c      the connection.
+     * @param cancel the download's cancellation; may be null.
+     * @throws NetworkSupportException if the download has been cancelled.
+     */
+    private static void checkCancelled(HttpURLConnection c, Cancellation cancel)
+        throws NetworkSupportException {
+        if (cancel != null && cancel.isCancelled()) {
+            c.disconnect();
+            throw new NetworkSupportException("Download cancelled.");
+        }
+    }
+
+    /**
+     * Download an image file from the network, to be decoded by Download.decode().
      * <p>
-     * When the BitmapFactory reads an image file from the network (e.g., a jpeg file),
-     * it decompresses the image and stores the decompressed image in a bitmap file in
-     * a particular bitmap format (e.g., ARGB_8888). The uncompressed bitmap can be
-     * substantially larger than the original compressed format.
+     * The image file is downloaded into a buffer taken from a small pool, so that a thread
+     * downloading one thumbnail after another doesn't allocate a new buffer for each. The
+     * buffer is handed over with the download, so that the image can be decoded on another
+     * thread (downloading is I/O-bound, decoding CPU-bound); Download.release() returns it
+     * to the pool.
      * <p>
-     * The downloaded images will be used both on the product list page (where they will
-     * appear as small thumbnails) and also on the product info page (where they will appear
-     * individually, as somewhat larger thumbnails). The requestedHeight and requestedWidth values should be sized
-     * to be slightly larger than the anticipated size of the images on the product info page.
-     * </p>
-     * The input stream must be opened and closed twice: once to get the size of the remote
-     * image file on the network and once to read it.
+     * Cancelling "cancel" from another thread aborts the download; this method then
+     * throws NetworkSupportException. So does an image file larger than MAX_IMAGE_SIZE.
      *
-     * @param urlStr    url to use to get the bitmap from the network.
-     * @param requestedHeight  maximum height of the image (in pixels)
-     * @param requestedWidth  maximum width of the image (in pixels)
-     * @return  the bitmap obtained from the network.
+     * @param urlStr    url of the image file.
+     * @param cancel    aborts the download when cancelled; may be null.
+     * @return  the downloaded image file; it must be released once it has been decoded.
      */
-    public static Bitmap getImageFromNetwork(String urlStr, int requestedHeight, int requestedWidth)
+    public static Download download(String urlStr, Cancellation cancel)
         throws NetworkSupportException {
         trace(String.format("Getting: %s", urlStr));
 
-        BitmapFactory.Options opts = setBmfOptions(urlStr, requestedHeight, requestedWidth);
-
-        Bitmap bitmap;
-        try (InputStream is = NetworkSupport.getInputStreamFromUrl(urlStr)) {
-            bitmap = BitmapFactory.decodeStream(is, null, opts);
+        DownloadBuffer buffer = DownloadBuffer.obtain();
+        boolean downloaded = false;
+        try (InputStream is = NetworkSupport.getInputStreamFromUrl(urlStr, cancel)) {
+            buffer.readFrom(is, MAX_IMAGE_SIZE);
+            downloaded = true;
         }
         catch (IOException ioe) {
             String msg = String.format("IOException: %s", ioe.getMessage());
             throw new NetworkSupportException(msg);
         }
-
-        if (bitmap == null)
-            throw new NetworkSupportException("null bitmap");
-
-        trace(String.format("Found: %s", urlStr));
-        logBitmapInfo(urlStr, bitmap, opts);
-        return bitmap;
+        finally {
+            if (cancel != null) {
+                cancel.detach();
+            }
+            if (!downloaded) {
+                buffer.recycle();
+            }
+        }
+        return new Download(urlStr, buffer);
     }
 
-    /**
-     * Determine the scaling factor for the image at the provided url.
-     *
-     * The scaling factor should shrink the image, if/as necessary, so that
-     * it is no smaller than, and not significantly larger than, the specified
-     * dimensions.
-     *
-     * @param urlStr the url for the image.
-     * @param hmax   the maximum height of the image.
-     * @param wmax   the maximum width of the image.
-     * @return standard BitmapFactory.Options instance.
-     */
-    private static BitmapFactory.Options setBmfOptions(
-            String urlStr, int hmax, int wmax)
-        throws NetworkSupportException  {
-        BitmapFactory.Options opts = new BitmapFactory.Options();
+    /** An image file downloaded by download(), waiting to be decoded. */
+    public static final class Download {
+        /** url of the image file. */
+        private final String url;
+
+        /** The image file; null once released. */
+        private DownloadBuffer buffer;
 
-        try (InputStream is = NetworkSupport.getInputStreamFromUrl(urlStr)) {
-            opts.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(is, null, opts);
+        Download(String _url, DownloadBuffer _buffer) {
+            url = _url;
+            buffer = _buffer;
         }
-        catch (IOException ioe) {
-            String msg = String.format("IOException: %s", ioe.getMessage());
-            throw new NetworkSupportException(msg);
+
+        /** Size of the image file, in bytes. */
+        public int size() {
+            return buffer.size();
         }
 
-        // Calculate the sample size.
-        opts.inSampleSize = calculateInSampleSize(opts, hmax, wmax);
+        /**
+         * Decode the image.
+         * <p>
+         * When the BitmapFactory reads an image file from the network (e.g., a jpeg file),
+         * it decompresses the image and stores the decompressed image in a bitmap file in
+         * a particular bitmap format (e.g., ARGB_8888). The uncompressed bitmap can be
+         * substantially larger than the original compressed format.
+         * <p>
+         * The downloaded images will be used both on the product list page (where they will
+         * appear as small thumbnails) and also on the product info page (where they will appear
+         * individually, as somewhat larger thumbnails). The requestedHeight and requestedWidth values should be sized
+         * to be slightly larger than the anticipated size of the images on the product info page.
+         * </p>
+         * The size of the image (to calculate the sample size) and then the image itself are
+         * decoded from the download buffer in place (see BitmapDecoder.decode()).
+         * <p>
+         * If "keepEncoded" is set, the image file's bytes are copied out of the buffer once,
+         * so that the caller can cache the compact, encoded image as well.
+         *
+         * @param requestedHeight  maximum height of the image (in pixels)
+         * @param requestedWidth  maximum width of the image (in pixels)
+         * @param keepEncoded whether to return the encoded image as read from the network.
+         * @return  the bitmap, with the encoded image if asked for.
+         */
+        public Image decode(int requestedHeight, int requestedWidth, boolean keepEncoded)
+            throws NetworkSupportException {
+            return decode(requestedHeight, requestedWidth, keepEncoded, bitmapDecoder);
+        }
 
-        // Restore opts so that data will be read the next time it is used.
-        opts.inJustDecodeBounds = false;
+        /**
+         * Decode the image with the specified decoder.
+         *
+         * @see #decode(int, int, boolean)
+         */
+        Image decode(int requestedHeight, int requestedWidth, boolean keepEncoded,
+                     Decoder decoder)
+            throws NetworkSupportException {
+            Bitmap bitmap = decoder.decode(
+                    buffer.array(), buffer.size(), requestedHeight, requestedWidth);
+            if (bitmap == null)
+                throw new NetworkSupportException("null bitmap");
 
-        return opts;
-    }
+            byte[] encoded = keepEncoded ? Arrays.copyOf(buffer.array(), buffer.size()) : null;
 
-    /**
-     * Calculate the scaling factor for an image to make it a small as possible while still
-     * fitting within the specified dimensions without losing any fidelity.
-     * <p>
-     * The algorithm is to iteratively divide each of the two dimensions in half until an
-     * appropriate size is reached (at either of them). The resulting dimensions must not
-     * be smaller than the specified dimensions, so the starting size is cut in half before
-     * beginning the calculations so that the algorithm doesn't overshoot and make the image
-     * too small.
-     *
-     * @param opts BitmapFactory.options containing the image's actual (pre-scaled)
-     *             height and width.
-     * @param requestedHeight requested height in pixels.
-     * @param requestedWidth requested width in pixels.
-     * @return the inSampleSize scaling factor to be passed to BitmapFactory.
-     */
-    private static int calculateInSampleSize(
-            BitmapFactory.Options opts, int requestedHeight, int requestedWidth) {
-        final int height = opts.outHeight;  // pre-scaled height of the image.
-        final int width  = opts.outWidth;   // pre-scaled width of the image.
-        int inSampleSize = 1;
-
-        // If the image potentially needs to be shrunk.
-        if (height > requestedHeight || width > requestedWidth) {
-            final int halfHeight = height / 2;
-            final int halfWidth = width / 2;
-
-            /*
-             * Calculate the largest inSampleSize value that is a power of two and keeps
-             * both height and width larger than the requested height and width.
-             */
-            while ((halfHeight / inSampleSize) >= requestedHeight &&
-                    (halfWidth / inSampleSize) >= requestedWidth) {
-                inSampleSize *= 2;
-            }
+            trace(String.format("Found: %s", url));
+            logBitmapInfo(url, bitmap, buffer.size());
+            return new Image(bitmap, encoded);
         }
 
-        return inSampleSize;
+        /** Return the download buffer to the pool. Must be called exactly once. */
+        public void release() {
+            buffer.recycle();
+            buffer = null;
+        }
     }
 
     /**
@@ -177,17 +251,104 @@ public class NetworkSupport {
      *
      * @param url       url for the image.
      * @param bitmap    the bitmap created from the image.
-     * @param opts      the options used to create the bitmap.
+     * @param fileSize  size of the image file.
      */
-    private static void logBitmapInfo(String url, Bitmap bitmap, BitmapFactory.Options opts) {
+    private static void logBitmapInfo(String url, Bitmap bitmap, int fileSize) {
         if (Settings.isAppTraceDetails()) {
             trace(String.format(Locale.US,
-                    "  DETAILS: Url=%s Mime=%s BitmapFormat=%s BitmapSize=%d",
-                    truncImageString(url), opts.outMimeType,
+                    "  DETAILS: Url=%s FileSize=%d BitmapFormat=%s BitmapSize=%d",
+                    truncImageString(url), fileSize,
                     bitmap.getConfig(), bitmap.getByteCount()));
         }
     }
 
+    /**
+     * Growable buffer that an image file is downloaded into, and decoded from, in place.
+     * <p>
+     * Buffers are pooled, and keep their size between downloads. A buffer grown beyond
+     * MAX_RETAINED by an unusually large image is shrunk back when it is recycled; buffers
+     * beyond MAX_POOLED (e.g., while a burst of downloads waits to be decoded) are left to
+     * the garbage collector.
+     */
+    private static final class DownloadBuffer extends ByteArrayOutputStream
+    {
+        /** Initial size of the buffer. */
+        private static final int INITIAL_SIZE = 64 * 1024;
+
+        /** Largest buffer kept for the next download. */
+        private static final int MAX_RETAINED = 1024 * 1024;
+
+        /** Most buffers kept in the pool. */
+        private static final int MAX_POOLED = 8;
+
+        /**
+         * Buffers free for the next downloads; last in, first out, so that the buffer
+         * used most recently (and most likely still in the CPU caches) is used next.
+         */
+        private static final ConcurrentLinkedDeque<DownloadBuffer> pool =
+                new ConcurrentLinkedDeque<>();
+
+        /** Number of buffers in the pool. */
+        private static final AtomicInteger pooled = new AtomicInteger();
+
+        DownloadBuffer() {
+            super(INITIAL_SIZE);
+        }
+
+        /** Take a buffer from the pool, or allocate one if the pool is empty. */
+        static DownloadBuffer obtain() {
+            DownloadBuffer buffer = pool.pollFirst();
+            if (buffer == null)
+                return new DownloadBuffer();
+            pooled.decrementAndGet();
+            return buffer;
+        }
+
+        /**
+         * Replace the buffer's contents with everything read from an input stream.
+         *
+         * @param is    the input stream, read to its end.
+         * @param limit most bytes to read.
+         * @throws IOException if the stream holds more than "limit" bytes.
+         */
+        void readFrom(InputStream is, int limit) throws IOException {
+            reset();
+            while (true) {
+                if (count == buf.length) {
+                    if (count > limit) {
+                        throw new IOException(String.format(Locale.US,
+                                "image larger than %d bytes", limit));
+                    }
+                    // Room for one byte past the limit, to detect an image that exceeds it.
+                    buf = Arrays.copyOf(buf, (int) Math.min(buf.length * 2L, limit + 1L));
+                }
+                int n = is.read(buf, count, buf.length - count);
+                if (n == -1)
+                    return;
+                count += n;
+            }
+        }
+
+        /** The buffer itself (not a copy); the contents are the first size() bytes. */
+        byte[] array() {
+            return buf;
+        }
+
+        /** Empty the buffer, shrinking it if it has grown too large, and pool it. */
+        void recycle() {
+            reset();
+            if (buf.length > MAX_RETAINED) {
+                buf = new byte[INITIAL_SIZE];
+            }
+            if (pooled.incrementAndGet() <= MAX_POOLED) {
+                pool.offerFirst(this);
+            }
+            else {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+
     /**
      * Tracing method specific to the networking module.
      *
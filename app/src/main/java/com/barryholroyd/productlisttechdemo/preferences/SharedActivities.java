@@ -7,6 +7,8 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 
 import com.barryholroyd.productlisttechdemo.R;
+import com.barryholroyd.productlisttechdemo.cache_memory.MemoryTrimmer;
+import com.barryholroyd.productlisttechdemo.metrics.MetricsActivity;
 
 /**
  * Activity that provides common appbar menu preferences.
@@ -14,6 +16,16 @@ import com.barryholroyd.productlisttechdemo.R;
  * These can be used by any Activity that wants to display and use the AppBar menu.
  */
 public abstract class SharedActivities extends AppCompatActivity {
+    /**
+     * Once one of the app's activities is in the foreground again, memory
+     * pressure has eased: give the memory caches back their full size.
+     */
+    @Override
+    protected void onResume() {
+        super.onResume();
+        MemoryTrimmer.restore();
+    }
+
     /**
      * Create the standard options menu for the app bar.
      */
@@ -32,6 +44,9 @@ public abstract class SharedActivities extends AppCompatActivity {
                 Intent intent = new Intent(this, SettingsActivity.class);
                 startActivity(intent);
                 return true;
+            case R.id.action_metrics:
+                startActivity(new Intent(this, MetricsActivity.class));
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
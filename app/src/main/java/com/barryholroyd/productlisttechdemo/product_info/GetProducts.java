@@ -10,6 +10,8 @@ import android.util.JsonReader;
 import android.util.JsonToken;
 
 import com.barryholroyd.productlisttechdemo.ActivityProductList;
+import com.barryholroyd.productlisttechdemo.metrics.Histogram;
+import com.barryholroyd.productlisttechdemo.metrics.Metrics;
 import com.barryholroyd.productlisttechdemo.network.NetworkSupport;
 import com.barryholroyd.productlisttechdemo.network.NetworkSupportException;
 import com.barryholroyd.productlisttechdemo.support.Support;
@@ -22,6 +24,7 @@ import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Get the list of products from a specific category at Walmart.
@@ -121,6 +124,18 @@ public class GetProducts
 	 */
     private String urlNextPage = null;
 
+	/**
+	 * Time to get a response for a page of products (connect and first byte),
+	 * and to read and parse it.
+	 */
+	private static final Histogram fetchTime = Metrics.histogram("products.fetch");
+	private static final Histogram parseTime = Metrics.histogram("products.parse");
+
+	/** Number of pages and products read, and of failed page requests. */
+	private static final AtomicLong pagesRead = Metrics.counter("products.pages");
+	private static final AtomicLong itemsRead = Metrics.counter("products.items");
+	private static final AtomicLong errors = Metrics.counter("products.errors");
+
 	/** allItemsRead becomes "true" when all the items have been downloaded. */
 	private boolean allItemsRead = false;
 
@@ -221,11 +236,20 @@ public class GetProducts
 		@Override
 		protected ProductInfoArrayList doInBackground(String urls[]) {
             // Download the JSON string from the network.
+			long start = System.nanoTime();
 			try (InputStream is = NetworkSupport.getInputStreamFromUrl(urls[0])) {
+				fetchTime.recordSince(start);
+				long parseStart = System.nanoTime();
 				WmpJsonReader jr = new WmpJsonReader(is);
-				return jr.parse();
+				ProductInfoArrayList pial = jr.parse();
+				parseTime.recordSince(parseStart);
+				pagesRead.incrementAndGet();
+				if (pial != null)
+					itemsRead.addAndGet(pial.size());
+				return pial;
 			}
 			catch (NetworkSupportException | IOException e) {
+				errors.incrementAndGet();
 				String msg = String.format("GetProducts: %s", e.getMessage());
 				Support.loge(msg);
                 Toaster.display(wrActivity, msg);
@@ -0,0 +1,107 @@
+package com.barryholroyd.productlisttechdemo.product_info;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import com.barryholroyd.productlisttechdemo.metrics.Histogram;
+import com.barryholroyd.productlisttechdemo.metrics.Metrics;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivery stage of the image loading pipeline: hands loaded images to the main thread
+ * to be displayed, once per frame.
+ * <p>
+ * Loader threads queue deliveries from any thread; a single Choreographer frame callback
+ * then runs all the deliveries queued by the start of the frame, rather than each one
+ * being posted to the main thread as a message of its own. When a burst of images arrives
+ * (e.g., a screenful of disk cache hits), the frame callback stops once it has used up
+ * FRAME_BUDGET_NANOS and carries the rest over to the next frame, so that displaying
+ * images never makes the list drop frames.
+ * <p>
+ * The time spent per frame, the number of frames that carried deliveries over and the
+ * number of deliveries waiting are recorded in the metrics registry.
+ */
+final class ImageDelivery
+{
+    /** Main thread time per frame for deliveries (4 ms of a 16 ms frame). */
+    private static final long FRAME_BUDGET_NANOS = 4000000L;
+
+    /** Deliveries waiting for a frame, oldest first. */
+    private static final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+
+    /** Whether a frame callback has been (or is being) scheduled. */
+    private static final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /** Used to schedule the frame callback from other threads. */
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /** Time spent running deliveries, per frame. */
+    private static final Histogram latencyFrame = Metrics.histogram("delivery.frame");
+
+    /** Number of frames that ran out of time and carried deliveries over to the next. */
+    private static final AtomicLong carried = Metrics.counter("delivery.carried");
+
+    static {
+        Metrics.register("delivery.queue", new Metrics.Gauge() {
+            public long value() { return queue.size(); }
+        });
+    }
+
+    /** Static methods only. */
+    private ImageDelivery() {}
+
+    /**
+     * Queue a delivery, to be run on the main thread at the next frame (or a later one,
+     * if the next frame's budget is used up). May be called from any thread.
+     *
+     * @param delivery the delivery: displays an image (if its ImageView still wants it).
+     */
+    static void post(Runnable delivery) {
+        queue.add(delivery);
+        schedule();
+    }
+
+    /** Schedule the frame callback, unless it is already scheduled. */
+    private static void schedule() {
+        if (!scheduled.compareAndSet(false, true))
+            return;
+        // Choreographer.getInstance() is per thread: it must be called on the main thread.
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Choreographer.getInstance().postFrameCallback(frameCallback);
+            }
+        });
+    }
+
+    /** Runs the queued deliveries, up to the frame budget. */
+    private static final Choreographer.FrameCallback frameCallback =
+            new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    long start = System.nanoTime();
+                    Runnable delivery;
+                    while ((delivery = queue.poll()) != null) {
+                        delivery.run();
+                        if (System.nanoTime() - start >= FRAME_BUDGET_NANOS)
+                            break;
+                    }
+                    latencyFrame.recordSince(start);
+
+                    if (!queue.isEmpty()) {
+                        carried.incrementAndGet();
+                        Choreographer.getInstance().postFrameCallback(this);
+                        return;
+                    }
+                    scheduled.set(false);
+                    // A delivery queued after the last poll() didn't schedule a frame.
+                    if (!queue.isEmpty()) {
+                        schedule();
+                    }
+                }
+            };
+}
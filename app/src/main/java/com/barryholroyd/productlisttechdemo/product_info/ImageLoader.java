@@ -4,19 +4,30 @@ import android.app.Activity;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.os.AsyncTask;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
 import com.barryholroyd.productlisttechdemo.config.Settings;
 import com.barryholroyd.productlisttechdemo.R;
+import com.barryholroyd.productlisttechdemo.bitmap.BitmapDecoder;
+import com.barryholroyd.productlisttechdemo.bitmap.BitmapPool;
 import com.barryholroyd.productlisttechdemo.cache_disk.CacheDiskImage;
+import com.barryholroyd.productlisttechdemo.cache_memory.CacheMemoryEncoded;
 import com.barryholroyd.productlisttechdemo.cache_memory.CacheMemoryImage;
+import com.barryholroyd.productlisttechdemo.metrics.Histogram;
+import com.barryholroyd.productlisttechdemo.metrics.Metrics;
+import com.barryholroyd.productlisttechdemo.network.Cancellation;
 import com.barryholroyd.productlisttechdemo.network.NetworkSupport;
 import com.barryholroyd.productlisttechdemo.network.NetworkSupportException;
 import com.barryholroyd.productlisttechdemo.support.Support;
 import com.barryholroyd.productlisttechdemo.support.Toaster;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Load and display an image.
@@ -25,13 +36,35 @@ import java.lang.ref.WeakReference;
  * When the app downloads the JSON data representing a list of products, it uses
  * this object to obtain the associated images.
  * <p>
- *     ImageLoader checks to see if the image is in the memory cache; if not, it uses
- *     a worker thread to check the disk cache; if the image isn't there, then the
- *     worker thread downloads it from the network.
+ *     ImageLoader checks to see if the image is in the memory cache; if not, a thread
+ *     from the decode pool checks the encoded image memory cache and then the disk cache;
+ *     if the image isn't there, then a thread from the network pool downloads it.
+ *     Both pools are small, fixed-size and run at background priority, and each runs
+ *     the most recent requests first, so that the rows on screen are loaded first.
+ *     Encoded images are much smaller than bitmaps, so the encoded image cache holds
+ *     many more images than the bitmap cache, each only a decode away.
  * <p>
- *     Regardless of how the image is obtained, it is displayed when it is available.
+ *     Regardless of how the image is obtained, it is displayed when it is available
+ *     (images loaded in the background are displayed in batches, once per frame).
  *     In the case of the Product List page, it is displayed in the correct row; if
  *     that row is no longer being displayed, the image is cached but not displayed.
+ *     When the same image is requested for several ImageViews while it is being loaded
+ *     (e.g., a row and the product info page), it is looked up, downloaded and decoded
+ *     once, and displayed in each of them.
+ * <p>
+ *     Bitmaps are retained in the BitmapPool from the time they are decoded until they
+ *     are no longer displayed, so that a bitmap evicted from the memory cache is never
+ *     decoded into while it is still in use.
+ * <p>
+ *     Images are loaded at the size of the ImageView they are displayed in, rounded up
+ *     to one of a few size buckets (see sizeBucket()). The memory cache holds a bitmap
+ *     per url and size bucket; when the requested size isn't cached, a larger one is
+ *     scaled down rather than decoding the image again. The encoded image memory cache
+ *     and the disk cache hold the image as downloaded, which serves every size.
+ * <p>
+ *     The time taken to get an image from each source, the number of background
+ *     loads in progress and the pools' queue depths and stage latencies are recorded
+ *     in the metrics registry.
  */
 
 public class ImageLoader {
@@ -39,18 +72,92 @@ public class ImageLoader {
      * We assume the BitmapFactory default image format of ARGB_8888 (4 bytes):
      * Image (bitmap) size: 100 * 100 * 4 = 40,000 bytes.
      */
-    /** Max. number of height pixels in product image. */
+    /** Height of product images (dp) when the ImageView's size isn't known. */
     static private final int IMAGE_HSIZE = 100;
 
-    /** Max. number of width pixels in product image. */
+    /** Width of product images (dp) when the ImageView's size isn't known. */
     static private final int IMAGE_WSIZE = 100;
 
+    /**
+     * Sizes (in pixels) images are loaded at: the size needed by the ImageView is rounded
+     * up to the next of these, so that views of similar sizes share cached bitmaps.
+     */
+    static private final int[] SIZE_BUCKETS =
+            { 64, 96, 128, 192, 256, 384, 512, 768, 1024, 1536, 2048 };
+
     /** In-memory caching instance. */
     public static CacheMemoryImage cacheMemory = null;
 
+    /** In-memory caching instance for encoded images. */
+    public static CacheMemoryEncoded cacheEncoded = null;
+
     /** Disk caching instance (singleton). */
     private static CacheDiskImage cacheDiskImage = null;
 
+    /** Time to get an image from each source (memory hits, encoded hits, disk hits, downloads). */
+    private static final Histogram latencyMemory  = Metrics.histogram("load.memory");
+    private static final Histogram latencyScaled  = Metrics.histogram("load.memory_scaled");
+    private static final Histogram latencyEncoded = Metrics.histogram("load.encoded");
+    private static final Histogram latencyDisk    = Metrics.histogram("load.disk");
+    private static final Histogram latencyNetwork = Metrics.histogram("load.network");
+
+    /** Number of threads downloading images. */
+    static private final int NETWORK_THREADS = 4;
+
+    /**
+     * Pool for the cache stage, which looks the image up in the memory, encoded image and
+     * disk caches and decodes it, and for the decode stage, which decodes downloaded images.
+     * Decoding is CPU-bound, so there is a thread per CPU.
+     */
+    private static final LoaderExecutor decodeExecutor =
+            new LoaderExecutor("decode", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Pool for the network stage, which downloads images not cached. Downloading is
+     * I/O-bound, so there are more threads than CPUs; the downloaded images are handed
+     * to the decode stage rather than decoded here, so that they don't compete with the
+     * cache stage for the CPUs.
+     */
+    private static final LoaderExecutor networkExecutor =
+            new LoaderExecutor("network", NETWORK_THREADS);
+
+    /** Number of load() calls. */
+    private static final AtomicLong requests = Metrics.counter("loader.requests");
+
+    /** Number of background loads started but not yet delivered or cancelled. */
+    private static final AtomicLong inFlight = Metrics.counter("loader.in_flight");
+
+    /** Number of requests cancelled (by a rebind, or by cancel()). */
+    private static final AtomicLong cancelled = Metrics.counter("loader.cancelled");
+
+    /** Number of images not displayed because their ImageView had been rebound meanwhile. */
+    private static final AtomicLong staleDeliveries = Metrics.counter("delivery.stale");
+
+    /** Number of requests that joined a load of the same image already in progress. */
+    private static final AtomicLong coalesced = Metrics.counter("loader.coalesced");
+
+    /** Number of cancelled loads removed from a queue before their next stage ran. */
+    private static final AtomicLong cancelledQueued = Metrics.counter("loader.cancelled_queued");
+
+    /** Number of cancelled loads whose download was aborted. */
+    private static final AtomicLong cancelledDownload =
+            Metrics.counter("loader.cancelled_download");
+
+    /**
+     * Loads in progress, by canonical url and size bucket. Also guards the state shared
+     * by requests and flights.
+     */
+    private static final HashMap<String, Flight> flights = new HashMap<>();
+
+    /** Whether loads are paused (while the product list is flinging). Main thread only. */
+    private static boolean paused = false;
+
+    /** Requests deferred while loads are paused, oldest first. Main thread only. */
+    private static final ArrayList<Request> deferred = new ArrayList<>();
+
+    /** Number of requests deferred because loads were paused. */
+    private static final AtomicLong deferrals = Metrics.counter("loader.deferred");
+
     /** Blank image bitmap used to fill the header "image" slot. */
     private static final Bitmap blankImageBitmap =
             Bitmap.createBitmap(IMAGE_WSIZE, IMAGE_HSIZE, Bitmap.Config.ARGB_8888);
@@ -61,31 +168,15 @@ public class ImageLoader {
     /** Resources hook. */
     private Resources resources = null;
 
-    /**
-     * imageUrl is the image url used to download a product's image. If this ImageLoader
-     * instance is owned by a ViewHolder, then the main (foreground) thread could
-     * reallocate the ViewHolder while the image is being loaded in the background,
-     * resulting in the image being associated with the wrong row in the list
-     * display.
-     * <p>
-     *     This imageUrl field contains the "correct" image imageUrl for the ViewHolder; if
-     *     the ViewHolder gets reallocated, then the imageUrl will be updated appropriately.
-     *     We should always use this field for loading the image, even if its value has
-     *     changed.
-     *
-     * @see #urlChanged(String, String, String)
-     */
-    private String imageUrl;
-
     /**
      * Standard constructor.
      * <p>
      * Initializes caches and stores a WeakReference to the current Activity.
      * <p>
      *     The Activity instance is used to print Toasts from the background and
-     *     to call runOnUiThread() from a worker thread. We use a WeakReference so
-     *     that we can determine whether or not it is still valid (e.g., a device
-     *     rotation will destroy the current Activity).
+     *     to check, before displaying an image, that it is still around. We use a
+     *     WeakReference so that we can determine whether or not it is still valid
+     *     (e.g., a device rotation will destroy the current Activity).
      * @param a    the current Activity.
      */
     public ImageLoader(Activity a) {
@@ -95,6 +186,11 @@ public class ImageLoader {
             cacheMemory = Settings.isMemoryCacheByBytes()
                     ? CacheMemoryImage.createWithBytes(Settings.getMemoryCacheSizeBytes())
                     : CacheMemoryImage.createWithPercent(Settings.getMemoryCacheSizePercent());
+            cacheMemory.registerMetrics("memory");
+        }
+        if (cacheEncoded == null) {
+            cacheEncoded = CacheMemoryEncoded.createWithBytes(Settings.getEncodedCacheSizeBytes());
+            cacheEncoded.registerMetrics("encoded");
         }
         if (cacheDiskImage == null) {
             cacheDiskImage = CacheDiskImage.makeInstance(
@@ -105,132 +201,421 @@ public class ImageLoader {
     /**
      * Load an image into an ImageView.
      * <p>
-     * Two different approaches are implemented: one threads-based and one AsyncTask-based.
+     * The image is loaded at the ImageView's size bucket (see sizeBucket()).
      * <ol>
      *     <li> Attempt to load from memory cache.
-     *     <li> If that fails, load from background. At each step, check to see if the
-     *          URL loaded from is the same as the current URL (it may have changed if
-     *          the containing ViewHolder got re-allocated). If it is the same, then load
-     *          it into the ImageView (in the main/UI thread). If it is different, ignore
-     *          and do nothing (the new URL will have already been either loaded or queued
-     *          to be loaded).
+     *     <li> If that fails, load from background (see Request). The ImageView keeps
+     *          the request (as its R.id.image_request tag) until the image is displayed.
+     *          If the ImageView is rebound (e.g., the containing ViewHolder got re-allocated)
+     *          before then, the request is cancelled, so that it doesn't use up the
+     *          decode and network pools, and its image is not displayed. Requests for
+     *          an image that is already being loaded share that load (see Flight).
      *     <ol>
-     *         <li>Attempt to load from disk cache. If successful, add to memory cache.
+     *         <li>Attempt to scale down a larger size of the image from the memory
+     *             cache. If successful, add to memory cache.
+     *         <li>Otherwise, attempt to load from the encoded image memory cache. If successful,
+     *             decode and add to memory cache.
+     *         <li>Otherwise, attempt to load from disk cache. If successful, add to memory
+     *             cache and encoded image memory cache.
      *         <li>Otherwise, attempt to load from network. If successful, add to memory
-     *             cache and disk cache.
+     *             cache, encoded image memory cache and disk cache.
      *         <li>Otherwise, load a default place-holder image.
      *     </ol>
      * </ol>
+     * Must be called on the main thread.
      */
     public void load(ImageView iv, String url) {
+        requests.incrementAndGet();
+        int bucket = sizeBucket(iv);
+        // Every tier is keyed by the canonical url, as the flights and the disk cache are.
+        url = url == null ? null : CacheDiskImage.canonicalUrl(url);
+
+        // A rebind to the image already being loaded carries on with the same request.
+        Request previous = (Request) iv.getTag(R.id.image_request);
+        if (previous != null && previous.isFor(url, bucket))
+            return;
+        cancel(iv);
+
         /*
          * Foreground: load from memory cache, if present.
          */
-        Bitmap bitmap = cacheMemory.get(url);
+        long start = System.nanoTime();
+        Bitmap bitmap = url == null ? null : cacheMemory.getAndRetain(memoryKey(url, bucket));
         if (bitmap != null) {
-            iv.setImageBitmap(bitmap);
+            latencyMemory.recordSince(start);
+            setImageBitmap(iv, bitmap);
+            BitmapPool.instance.release(bitmap);
             return;
         }
 
         /*
-         * "imageUrl" is directly accessible by background threads.
-         * It is possible that this might change before being used, but
-         * it should still be used.
+         * Background: load from the other caches or the network.
          */
-        imageUrl = url;
+        inFlight.incrementAndGet();
+        Request request = new Request(iv, url, bucket);
+        iv.setTag(R.id.image_request, request);
+        if (paused) {
+            deferred.add(request);
+            deferrals.incrementAndGet();
+            return;
+        }
+        request.start();
+    }
 
-        /*
-         * Background: load from disk or network.
-         * Both LiThread and LiAsyncTask have to be defined as nested classes so that
-         * they can have access to "imageUrl". The current value of imageUrl
-         * is passed in to be used for comparing to its value at a later time,
-         * to see if its value has been changed by the main thread.
-         */
-        if (Settings.isAppUseThreads()) (new LiThread(iv, imageUrl)).start();
-        else new LiAsyncTask(iv, imageUrl).execute();
+    /**
+     * Pause loading: from now on, load() only displays images from the memory cache and
+     * defers the rest until resume() is called. Used while the product list is flinging,
+     * when most rows are scrolled off the screen again before their images could arrive.
+     * Must be called on the main thread.
+     */
+    public static void pause() {
+        paused = true;
+    }
+
+    /**
+     * Resume loading, starting the deferred requests whose ImageViews are still waiting
+     * for them (i.e., the rows now on screen; the others have been rebound or recycled,
+     * which cancels their requests). Must be called on the main thread.
+     */
+    public static void resume() {
+        if (!paused)
+            return;
+        paused = false;
+        // Oldest first: requests are run newest first, so the last row bound loads first.
+        for (Request request : deferred) {
+            if (!request.isDone() && request.iv.getTag(R.id.image_request) == request) {
+                request.start();
+            }
+        }
+        trace(String.format(Locale.US, "Resumed; %d requests were deferred.", deferred.size()));
+        deferred.clear();
+    }
+
+    /** Whether loading is paused. */
+    static boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Load an image into the caches ahead of its being displayed.
+     * <p>
+     * The load runs at low priority, after any loads for images being displayed; it is
+     * promoted if the image is requested for display meanwhile. Must be called on the
+     * main thread.
+     *
+     * @param url    url for the image.
+     * @param bucket size bucket to load the image at.
+     * @return the request, which can be cancelled; null if there is nothing to load.
+     */
+    Request prefetch(String url, int bucket) {
+        if (url == null)
+            return null;
+        url = CacheDiskImage.canonicalUrl(url);
+        if (cacheMemory.contains(memoryKey(url, bucket)))
+            return null;
+        inFlight.incrementAndGet();
+        Request request = new Request(null, url, bucket);
+        request.start();
+        return request;
+    }
+
+    /**
+     * Cancel the request loading an image into an ImageView, if there is one.
+     * Must be called on the main thread.
+     *
+     * @param iv the ImageView.
+     */
+    public static void cancel(ImageView iv) {
+        Request request = (Request) iv.getTag(R.id.image_request);
+        if (request != null) {
+            iv.setTag(R.id.image_request, null);
+            request.cancel();
+        }
     }
 
     /**
-     * Threads-based version of loading the image in the background.
+     * Request to load an image into an ImageView: the ImageView's share of a Flight.
+     * <p>
+     * A request can be cancelled from the main thread at any time, after which its image
+     * is not displayed. The flight is cancelled along with the last of its requests.
+     * A request deferred while loading is paused has no flight until it is started.
+     * <p>
+     * A prefetch is a request without an ImageView: it just loads the image into the caches.
      *
      * @see #load(ImageView, String)
+     * @see #prefetch(String, int)
      */
-    private class LiThread extends Thread
+    class Request
     {
+        /** The ImageView the image is displayed in; null for a prefetch. */
         private final ImageView iv;
-        private String origImageUrl;
 
-        LiThread(ImageView _iv, String _origImageUrl) {
-            iv= _iv;
-            origImageUrl = _origImageUrl;
-        }
+        /** The image's canonical url (see CacheDiskImage.canonicalUrl()). */
+        private final String url;
+        private final int bucket;
 
-        @Override
-        public void run() {
-            /*
-             * We have already tried pulling the bitmap from the memory
-             * cache (that happens in the foreground), but didn't find it
-             * there.
-             */
-            Bitmap bitmap;
+        /** The flight loading the image. Guarded by "flights", as is isFinished. */
+        private Flight flight = null;
 
-            // Check for a null imageUrl.
-            bitmap = setImageNullCheck(imageUrl);
-            if (bitmap != null) {
-                setImageView(iv, getNoImageBitmap(resources));
-                return;
+        /** Whether the request has been cancelled or its image handed over for display. */
+        private boolean isFinished = false;
+
+        Request(ImageView _iv, String _url, int _bucket) {
+            iv = _iv;
+            url = _url;
+            bucket = _bucket;
+        }
+
+        /** Whether the request has been cancelled or its image handed over. */
+        boolean isDone() {
+            synchronized (flights) {
+                return isFinished;
             }
+        }
 
-            // Try the disk cache.
-            checkUrl("Pre-disk cache", origImageUrl, imageUrl);
-            bitmap = setImageDiskCache(imageUrl);
-            if (bitmap != null) {
-                setImageView(iv, bitmap);
+        /** Whether this request loads the image at url at the size bucket. */
+        boolean isFor(String _url, int _bucket) {
+            return bucket == _bucket && (url == null ? _url == null : url.equals(_url));
+        }
+
+        /**
+         * Join the flight loading the image, starting one if there isn't one.
+         * Images without a url aren't shared. A prefetch flight joined by a request to
+         * display the image is promoted to normal priority.
+         */
+        void start() {
+            String key = url == null ? null : memoryKey(url, bucket);
+            final Flight f;
+            boolean isNew;
+            LoaderExecutor.Job requeue = null;
+            LoaderExecutor requeueOn = null;
+            synchronized (flights) {
+                Flight existing = key == null ? null : flights.get(key);
+                isNew = existing == null;
+                f = isNew ? new Flight(key, url, bucket, iv == null) : existing;
+                if (isNew && key != null) {
+                    flights.put(key, f);
+                }
+                if (!isNew && iv != null && f.isPrefetch) {
+                    f.isPrefetch = false;
+                    if (f.job != null && f.executor.remove(f.job)) {
+                        requeue = f.job;
+                        requeueOn = f.executor;
+                        f.job = null;
+                        f.executor = null;
+                    }
+                }
+                f.waiters.add(this);
+                flight = f;
+            }
+            if (!isNew) {
+                coalesced.incrementAndGet();
+                trace(String.format("Joined load in progress: %s",
+                        Support.truncImageString(url)));
+                if (requeue != null && !f.enqueue(requeueOn, requeue)) {
+                    f.releaseDownload();
+                }
                 return;
             }
+            f.enqueue(decodeExecutor, new LoaderExecutor.Job() {
+                @Override
+                void work() { f.fromCaches(); }
+            });
+        }
 
-            // Get the image from the network. Bitmap is guaranteed to be non-null.
-            checkUrl("Pre-network", origImageUrl, imageUrl);
-            bitmap = setImageNetwork(imageUrl);
-            setImageView(iv, bitmap);
+        /** Cancel the request. */
+        void cancel() {
+            Flight f;
+            synchronized (flights) {
+                if (isFinished)
+                    return;
+                isFinished = true;
+                if (flight != null) {
+                    flight.waiters.remove(this);
+                }
+                f = flight != null && flight.waiters.isEmpty() ? flight : null;
+                if (f != null) {
+                    f.cancelLocked();
+                }
+            }
+            cancelled.incrementAndGet();
+            inFlight.decrementAndGet();
+            if (f != null) {
+                f.abortDownload();
+            }
+            if (Settings.isAppTraceDetails()) {
+                trace(String.format("Cancelled: %s", Support.truncImageString(url)));
+            }
         }
 
-        /** Set the ImageView on the main thread. */
-        private void setImageView(final ImageView iv, final Bitmap bitmap) {
+        /**
+         * Set the ImageView on the main thread, at the next frame with time to spare (see
+         * ImageDelivery), provided the ImageView is still bound to this request by then.
+         * Called by the flight, with the request already finished.
+         *
+         * @param bitmap the image, retained for this request.
+         */
+        private void setImageView(final Bitmap bitmap) {
+            inFlight.decrementAndGet();
+            if (iv == null) {
+                BitmapPool.instance.release(bitmap);
+                return;
+            }
             Activity a = Support.getActivity(wrActivity,
                     "Activity gone: could not set ImageView");
             if (a != null) {
-                a.runOnUiThread(new Runnable() {
+                ImageDelivery.post(new Runnable() {
                     public void run() {
-                        iv.setImageBitmap(bitmap);
+                        if (iv.getTag(R.id.image_request) == Request.this) {
+                            iv.setTag(R.id.image_request, null);
+                            setImageBitmap(iv, bitmap);
+                        }
+                        else {
+                            staleDeliveries.incrementAndGet();
+                        }
+                        BitmapPool.instance.release(bitmap);
                     }
                 });
             }
+            else {
+                BitmapPool.instance.release(bitmap);
+            }
         }
     }
 
     /**
-     * AsyncTask-based version of loading the image in the background.
+     * Load of one image at one size, shared by every Request for it made while it is in
+     * progress, in stages: the cache stage runs on the decode pool and, if the image isn't
+     * cached, queues the network stage on the network pool, which downloads the image and
+     * queues the decode stage back on the decode pool. The image is fetched and decoded
+     * once and handed to each of the requests.
+     * <p>
+     * A flight is cancelled when all of its requests have been. If it is waiting in a
+     * queue, it is removed; if it is downloading, the download is aborted. A stage that
+     * is already decoding is left to finish (its result is still cached), but no further
+     * stage is queued.
      */
-    private class LiAsyncTask extends AsyncTask<String, Void, Bitmap>
+    private class Flight
     {
-        private final ImageView iv;
-        private String origImageUrl;
+        /** Key in "flights"; null if the flight isn't shared. */
+        private final String key;
+        private final String url;
+        private final int bucket;
+
+        /** The requests waiting for the image. Guarded by "flights", as are the fields below. */
+        private final List<Request> waiters = new ArrayList<>();
+
+        /** The pool and job for the stage the flight is queued for; null if none. */
+        private LoaderExecutor executor = null;
+        private LoaderExecutor.Job job = null;
+
+        /** Whether the flight has been cancelled. */
+        private boolean isCancelled = false;
+
+        /** Whether only prefetches want the image; its stages then run at low priority. */
+        private boolean isPrefetch;
+
+        /** Whether the flight has been cancelled or its image handed to the requests. */
+        private boolean isFinished = false;
+
+        /** Aborts the download. */
+        private final Cancellation download = new Cancellation();
 
-        LiAsyncTask(ImageView _iv, String _origImageUrl) {
-            iv= _iv;
-            origImageUrl = _origImageUrl;
+        /** The downloaded image file, waiting for the decode stage; null if none. */
+        private NetworkSupport.Download downloaded = null;
+
+        Flight(String _key, String _url, int _bucket, boolean _isPrefetch) {
+            key = _key;
+            url = _url;
+            bucket = _bucket;
+            isPrefetch = _isPrefetch;
+        }
+
+        /**
+         * Queue the next stage, unless the flight has been cancelled.
+         *
+         * @param _executor the stage's pool.
+         * @param _job      the stage's job; it must call started() before anything else.
+         * @return false if the flight has been cancelled, in which case the stage wasn't
+         *         queued.
+         */
+        boolean enqueue(LoaderExecutor _executor, LoaderExecutor.Job _job) {
+            boolean lowPriority;
+            synchronized (flights) {
+                if (isCancelled)
+                    return false;
+                executor = _executor;
+                job = _job;
+                lowPriority = isPrefetch;
+            }
+            _executor.enqueue(_job, lowPriority);
+            return true;
         }
 
         /**
-         * Get the image bitmap from the disk cache or the network.
+         * Called when a stage starts running.
          *
-         * @see #load(ImageView, String)
-         * @param args  n/a - this is provided but ignored.
-         * @return      image bitmap obtained.
+         * @return false if the flight has been cancelled, in which case the stage should
+         *         do nothing.
          */
-        @Override
-        protected Bitmap doInBackground(String... args) {
+        boolean started() {
+            synchronized (flights) {
+                executor = null;
+                job = null;
+                return !isCancelled;
+            }
+        }
+
+        /**
+         * Cancel the flight: stop sharing it and take it off its queue, if it is queued.
+         * Must be called holding the "flights" lock; abortDownload() must be called
+         * afterwards, without it.
+         */
+        void cancelLocked() {
+            isCancelled = true;
+            isFinished = true;
+            unshare();
+            if (job != null && executor.remove(job)) {
+                cancelledQueued.incrementAndGet();
+                // The decode stage won't run: free its download buffer.
+                if (downloaded != null) {
+                    downloaded.release();
+                    downloaded = null;
+                }
+            }
+            executor = null;
+            job = null;
+        }
+
+        /** Abort the download, if the flight is downloading. */
+        void abortDownload() {
+            if (download.cancel()) {
+                cancelledDownload.incrementAndGet();
+            }
+        }
+
+        /** Remove the flight from "flights", so that new requests start a new one. */
+        private void unshare() {
+            if (key != null && flights.get(key) == this) {
+                flights.remove(key);
+            }
+        }
+
+        /** Cache stage: get the image from the caches, or queue the network stage. */
+        void fromCaches() {
+            if (!started())
+                return;
+            try {
+                lookUpCaches();
+            }
+            catch (RuntimeException e) {
+                fail("cache", e);
+            }
+        }
+
+        /** The work of the cache stage. */
+        private void lookUpCaches() {
+
             /*
              * We have already tried pulling the bitmap from the memory
              * cache (that happens in the foreground), but didn't find it
@@ -238,29 +623,154 @@ public class ImageLoader {
              */
             Bitmap bitmap;
 
-            // Check for a null origImageUrl.
-            bitmap = setImageNullCheck(imageUrl);
-            if (bitmap != null) { return bitmap; }
+            // Check for a null url.
+            bitmap = setImageNullCheck(url);
+            if (bitmap != null) {
+                complete(bitmap);
+                return;
+            }
+
+            // Try a larger size from the memory cache.
+            bitmap = setImageMemoryScaled(url, bucket);
+            if (bitmap != null) {
+                complete(bitmap);
+                return;
+            }
+
+            // Try the encoded image memory cache.
+            bitmap = setImageEncodedCache(url, bucket);
+            if (bitmap != null) {
+                complete(bitmap);
+                return;
+            }
 
             // Try the disk cache.
-            checkUrl("Pre-disk cache", origImageUrl, imageUrl);
-            bitmap = setImageDiskCache(imageUrl);
-            if (bitmap != null) { return bitmap; }
+            bitmap = setImageDiskCache(url, bucket);
+            if (bitmap != null) {
+                complete(bitmap);
+                return;
+            }
+
+            // Get the image from the network.
+            enqueue(networkExecutor, new LoaderExecutor.Job() {
+                @Override
+                void work() { fromNetwork(); }
+            });
+        }
 
-            // Get the image from the network. Bitmap is guaranteed to be non-null.
-            checkUrl("Pre-network", origImageUrl, imageUrl);
-            bitmap = setImageNetwork(imageUrl);
-            return bitmap;
+        /** Network stage: download the image, and queue the decode stage. */
+        void fromNetwork() {
+            if (!started())
+                return;
+            try {
+                downloadImage();
+            }
+            catch (RuntimeException e) {
+                releaseDownload();
+                fail("network", e);
+            }
+        }
+
+        /** The work of the network stage. */
+        private void downloadImage() {
+            NetworkSupport.Download d;
+            try {
+                d = setImageNetwork(url, download);
+            }
+            catch (NetworkSupportException nse) {
+                if (!download.isCancelled()) {
+                    complete(getNoImageBitmap(resources));
+                }
+                return;
+            }
+
+            synchronized (flights) {
+                downloaded = d;
+            }
+            boolean queued = enqueue(decodeExecutor, new LoaderExecutor.Job() {
+                @Override
+                void work() { fromDownload(); }
+            });
+            if (!queued) {
+                releaseDownload();
+            }
+        }
+
+        /** Decode stage: decode the downloaded image. */
+        void fromDownload() {
+            NetworkSupport.Download d;
+            synchronized (flights) {
+                d = downloaded;
+                downloaded = null;
+            }
+            if (!started()) {
+                if (d != null) {
+                    d.release();
+                }
+                return;
+            }
+            try {
+                complete(setImageDownloaded(url, bucket, d));
+            }
+            catch (RuntimeException e) {
+                fail("decode", e);
+            }
         }
 
         /**
-         * Display the image.
+         * Finish the flight after a stage has failed unexpectedly: stop sharing it and
+         * hand the default image to its requests, so that neither they nor later requests
+         * for the image wait for it forever.
          *
-         * @param bitmap bitmap to be displayed.
+         * @param stage the stage that failed.
+         * @param e     the failure.
          */
-        @Override
-        protected void onPostExecute(Bitmap bitmap) {
-                iv.setImageBitmap(bitmap);
+        private void fail(String stage, RuntimeException e) {
+            Support.loge(String.format("Image load failed in the %s stage: %s: %s",
+                    stage, Support.truncImageString(url), e));
+            synchronized (flights) {
+                unshare();
+            }
+            complete(getNoImageBitmap(resources));
+        }
+
+        /** Free the download buffer of a decode stage that wasn't queued. */
+        void releaseDownload() {
+            NetworkSupport.Download d;
+            synchronized (flights) {
+                d = downloaded;
+                downloaded = null;
+            }
+            if (d != null) {
+                d.release();
+            }
+        }
+
+        /**
+         * Hand the image to each of the requests, unless the flight has been cancelled.
+         *
+         * @param bitmap the image, retained for the flight.
+         */
+        private void complete(Bitmap bitmap) {
+            List<Request> done;
+            synchronized (flights) {
+                if (isFinished) {
+                    BitmapPool.instance.release(bitmap);
+                    return;
+                }
+                isFinished = true;
+                unshare();
+                done = new ArrayList<>(waiters);
+                waiters.clear();
+                for (Request request : done) {
+                    request.isFinished = true;
+                }
+            }
+            for (Request request : done) {
+                BitmapPool.instance.retain(bitmap);
+                request.setImageView(bitmap);
+            }
+            BitmapPool.instance.release(bitmap);
         }
     }
 
@@ -280,34 +790,165 @@ public class ImageLoader {
         return null;
     }
 
+    /**
+     * Attempt to get the image bitmap by scaling down a larger size of the image
+     * from the memory cache.
+     *
+     * If successful, add the scaled bitmap to the memory cache. The bitmap is retained
+     * until it has been displayed.
+     *
+     * @param url    origImageUrl for the image.
+     * @param bucket size bucket wanted.
+     * @return       bitmap from the image.
+     */
+    private Bitmap setImageMemoryScaled(String url, int bucket) {
+        long start = System.nanoTime();
+        for (int larger : SIZE_BUCKETS) {
+            if (larger <= bucket)
+                continue;
+            /*
+             * Probe with contains(), which doesn't count a miss or bump the entry's
+             * frequency, so that only the bucket actually used is recorded as a hit.
+             */
+            String key = memoryKey(url, larger);
+            if (!cacheMemory.contains(key))
+                continue;
+            // Retained before it can be evicted, so it isn't reused for a decode while scaled.
+            Bitmap source = cacheMemory.getAndRetain(key);
+            if (source == null)
+                continue; // Evicted since contains().
+
+            try {
+                float scale = Math.max((float) bucket / source.getWidth(),
+                        (float) bucket / source.getHeight());
+                if (scale >= 1) {
+                    // Already no larger than needed: display it as it is.
+                    BitmapPool.instance.retain(source);
+                    latencyScaled.recordSince(start);
+                    return source;
+                }
+                Bitmap bitmap = Bitmap.createScaledBitmap(source,
+                        Math.max(1, Math.round(source.getWidth() * scale)),
+                        Math.max(1, Math.round(source.getHeight() * scale)), true);
+                BitmapPool.instance.retain(bitmap);
+                cacheMemory.add(memoryKey(url, bucket), bitmap);
+                latencyScaled.recordSince(start);
+                return bitmap;
+            }
+            finally {
+                BitmapPool.instance.release(source);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Attempt to get the image bitmap from the encoded image memory cache.
+     *
+     * If successful, add the decoded bitmap to the memory cache. The bitmap is retained
+     * until it has been displayed.
+     *
+     * @param url    origImageUrl for the image.
+     * @param bucket size bucket wanted.
+     * @return       bitmap from the image.
+     */
+    private Bitmap setImageEncodedCache(String url, int bucket) {
+        long start = System.nanoTime();
+        byte[] data = cacheEncoded.get(url);
+        if (data == null)
+            return null;
+        Bitmap bitmap = decode(url, bucket, data);
+        if (bitmap != null)
+            latencyEncoded.recordSince(start);
+        return bitmap;
+    }
+
     /**
      * Attempt to get the image bitmap from the disk cache.
      *
-     * If successful, add it to the memory cache.
+     * If successful, add the encoded image to the encoded image memory cache and
+     * the decoded bitmap to the memory cache. The bitmap is retained until it
+     * has been displayed.
      *
-     * @param url origImageUrl for the image.
-     * @return    bitmap from the image.
+     * @param url    origImageUrl for the image.
+     * @param bucket size bucket wanted.
+     * @return       bitmap from the image.
      */
-    private Bitmap setImageDiskCache(String url) {
-        Bitmap bitmap = cacheDiskImage.get(url);
-        if (bitmap != null) {
-            cacheMemory.add(url, bitmap);
+    private Bitmap setImageDiskCache(String url, int bucket) {
+        long start = System.nanoTime();
+        byte[] data = cacheDiskImage.get(url);
+        if (data == null)
+            return null;
+        cacheEncoded.add(url, data);
+        Bitmap bitmap = decode(url, bucket, data);
+        if (bitmap != null)
+            latencyDisk.recordSince(start);
+        return bitmap;
+    }
+
+    /**
+     * Decode a cached, encoded image and add the bitmap to the memory cache.
+     *
+     * @param url    origImageUrl for the image.
+     * @param bucket size bucket to decode at.
+     * @param data   the encoded image.
+     * @return       bitmap from the image, retained; null if it could not be decoded.
+     */
+    private Bitmap decode(String url, int bucket, byte[] data) {
+        Bitmap bitmap = BitmapDecoder.decode(data, bucket, bucket);
+        if (bitmap == null) {
+            Support.loge(String.format("Could not decode cached image: %s",
+                    Support.truncImageString(url)));
+            return null;
         }
+        BitmapPool.instance.retain(bitmap);
+        cacheMemory.add(memoryKey(url, bucket), bitmap);
         return bitmap;
     }
 
     /**
-     * Attempt to get the image bitmap from the network.
+     * Attempt to download the image file from the network.
+     *
+     * If the download fails (other than by being cancelled), the failure is reported.
+     *
+     * @param origImageUrl origImageUrl for the image.
+     * @param download     aborts the download when cancelled.
+     * @return    the downloaded image file, to be decoded by setImageDownloaded().
+     */
+    private NetworkSupport.Download setImageNetwork(String origImageUrl, Cancellation download)
+            throws NetworkSupportException {
+        long start = System.nanoTime();
+        try {
+            NetworkSupport.Download d = NetworkSupport.download(origImageUrl, download);
+            latencyNetwork.recordSince(start);
+            return d;
+        }
+        catch (NetworkSupportException nse) {
+            if (!download.isCancelled()) {
+                String msg = String.format("NetworkSupportException: %s", nse.getMessage());
+                Support.loge(msg);
+                Toaster.display(wrActivity, msg);
+            }
+            throw nse;
+        }
+    }
+
+    /**
+     * Decode a downloaded image file, and release its download buffer.
      *
-     * If successful, add it to the memory and disk caches.
+     * If successful, add the image to the memory caches and the disk cache. The bitmap is
+     * retained until it has been displayed.
      *
      * @param origImageUrl origImageUrl for the image.
-     * @return    bitmap from the image.
+     * @param bucket       size bucket wanted.
+     * @param downloaded   the downloaded image file.
+     * @return    bitmap from the image, or the default image if it couldn't be decoded.
      */
-    private Bitmap setImageNetwork(String origImageUrl) {
-        Bitmap bitmap;
+    private Bitmap setImageDownloaded(String origImageUrl, int bucket,
+                                      NetworkSupport.Download downloaded) {
+        NetworkSupport.Image image;
         try {
-            bitmap = NetworkSupport.getImageFromNetwork(origImageUrl, IMAGE_HSIZE, IMAGE_WSIZE);
+            image = downloaded.decode(bucket, bucket, true);
         }
         catch (NetworkSupportException nse) {
             String msg = String.format("NetworkSupportException: %s", nse.getMessage());
@@ -315,59 +956,74 @@ public class ImageLoader {
             Toaster.display(wrActivity, msg);
             return getNoImageBitmap(resources);
         }
-
-        /*
-         * We pulled an image from the network. However, it is possible that the imageUrl
-         * got changed at the last instant, in which case the image is no longer valid for
-         * this ImageLoader. In that situation, display the default image for now and wait
-         * for the later thread download the newer image. In rare cases, the default
-         * image may stayed displayed. I believe this happens if this thread ends up
-         * executing after the "other" thread. Pragmatically, that isn't a problem with
-         * the memory and disk caches in place.
-         */
-        if (urlChanged("Network", origImageUrl, imageUrl)) {
-            String stubUrl = Support.truncImageString(origImageUrl);
-            if (Settings.isAppTraceDetails()) {
-                trace(String.format("Loading default image instead of %s.", stubUrl));
-            }
-            return getNoImageBitmap(resources);
-        }
-
-        if (bitmap != null) {
-            cacheMemory.add(origImageUrl, bitmap);
-            cacheDiskImage.add(wrActivity, origImageUrl, bitmap);
-        }
-        else {
-            bitmap = getNoImageBitmap(resources);
+        finally {
+            downloaded.release();
         }
 
+        Bitmap bitmap = image.bitmap;
+        BitmapPool.instance.retain(bitmap);
+        cacheMemory.add(memoryKey(origImageUrl, bucket), bitmap);
+        cacheEncoded.add(origImageUrl, image.encoded);
+        cacheDiskImage.add(wrActivity, origImageUrl, image.encoded);
         return bitmap;
     }
 
-    /** Check to see if the value of imageUrl has changed.
+    /**
+     * Get the size bucket for the image displayed in an ImageView.
      * <p>
-     *     If its value has changed, just log the fact.
+     * The size needed is taken, in order of preference, from the ImageView's layout
+     * size (if it is fixed), its maximum size (for wrap_content, as in the product list),
+     * its measured size (once it has been laid out) or, failing all of those, the default
+     * image size for the display's density. The larger of the width and height is then
+     * rounded up to a size bucket.
      *
-     * @param origImageUrl original origImageUrl
-     * @param imageUrl updated (potentially different) origImageUrl
+     * @param iv the ImageView.
+     * @return the size bucket, in pixels.
      */
-    private void checkUrl(String label, String origImageUrl, String imageUrl) {
-        if (urlChanged(label, origImageUrl, imageUrl)) {
-            if (Settings.isAppTraceDetails()) {
-                trace(String.format("Loading new image instead: %s.", imageUrl));
-            }
+    static int sizeBucket(ImageView iv) {
+        ViewGroup.LayoutParams lp = iv.getLayoutParams();
+        int w = lp != null && lp.width > 0 ? lp.width : iv.getMaxWidth();
+        int h = lp != null && lp.height > 0 ? lp.height : iv.getMaxHeight();
+        if (w <= 0 || w == Integer.MAX_VALUE) w = iv.getWidth();
+        if (h <= 0 || h == Integer.MAX_VALUE) h = iv.getHeight();
+        float density = iv.getResources().getDisplayMetrics().density;
+        if (w <= 0) w = Math.round(IMAGE_WSIZE * density);
+        if (h <= 0) h = Math.round(IMAGE_HSIZE * density);
+
+        int size = Math.max(w, h);
+        for (int bucket : SIZE_BUCKETS) {
+            if (bucket >= size)
+                return bucket;
         }
+        return SIZE_BUCKETS[SIZE_BUCKETS.length - 1];
     }
-    private boolean urlChanged(String label, String origImageUrl, String imageUrl) {
-        boolean changed = !origImageUrl.equals(imageUrl);
-        if (changed) {
-            String oldUrl = Support.truncImageString(origImageUrl);
-            String newUrl = Support.truncImageString(imageUrl);
-            trace(String.format(
-                    "Image request has changed [%s]: orig=%s new=%s.",
-                    label, oldUrl, newUrl));
-        }
-        return changed;
+
+    /**
+     * Get the memory cache key for an image at a size.
+     *
+     * @param url    url for the image.
+     * @param bucket size bucket.
+     * @return the key.
+     */
+    private static String memoryKey(String url, int bucket) {
+        return url + "@" + bucket;
+    }
+
+    /**
+     * Display a bitmap in an ImageView. Must be called on the main thread.
+     * <p>
+     * The bitmap pool is told which bitmap the ImageView now shows (and which one it
+     * no longer shows), so that a displayed bitmap is never reused for decoding.
+     *
+     * @param iv     the ImageView.
+     * @param bitmap the bitmap to display.
+     */
+    static void setImageBitmap(ImageView iv, Bitmap bitmap) {
+        Bitmap previous = (Bitmap) iv.getTag(R.id.image_bitmap);
+        BitmapPool.instance.retain(bitmap);
+        iv.setTag(R.id.image_bitmap, bitmap);
+        iv.setImageBitmap(bitmap);
+        BitmapPool.instance.release(previous);
     }
 
     /** Get the default image. */
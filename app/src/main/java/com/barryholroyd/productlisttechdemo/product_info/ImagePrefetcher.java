@@ -0,0 +1,219 @@
+package com.barryholroyd.productlisttechdemo.product_info;
+
+import android.app.Activity;
+import android.os.SystemClock;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+import android.widget.ImageView;
+
+import com.barryholroyd.productlisttechdemo.R;
+import com.barryholroyd.productlisttechdemo.config.Settings;
+import com.barryholroyd.productlisttechdemo.metrics.Metrics;
+import com.barryholroyd.productlisttechdemo.support.Support;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load the images for the rows about to be scrolled onto the screen into the caches,
+ * so that they can be displayed as soon as their rows are bound.
+ * <p>
+ * The number of rows prefetched ahead of the visible rows, in the direction of scrolling,
+ * grows with the scrolling speed: enough rows to cover LOOKAHEAD_MS of scrolling at the
+ * current speed, between MIN_AHEAD and MAX_AHEAD. Prefetches for rows that are neither
+ * visible nor ahead (e.g., rows that have been scrolled past) are cancelled.
+ * <p>
+ * Prefetches run at low priority (see ImageLoader.prefetch()), so they never hold up
+ * the images for the visible rows. No prefetches are started while image loading is
+ * paused (during a fling), since the rows ahead then change too quickly to be worth it.
+ * <p>
+ * Note: All row references are for the backing array. All methods are called on the
+ * main thread.
+ */
+final class ImagePrefetcher
+{
+    /** Fewest rows prefetched ahead of the visible rows. */
+    private static final int MIN_AHEAD = 4;
+
+    /** Most rows prefetched ahead of the visible rows. */
+    private static final int MAX_AHEAD = 40;
+
+    /** How far ahead, in time at the current scrolling speed, rows are prefetched. */
+    private static final long LOOKAHEAD_MS = 1000;
+
+    /** Weight of the latest sample in the smoothed scrolling speed. */
+    private static final float SPEED_SMOOTHING = 0.5f;
+
+    /** Number of prefetches started. */
+    private static final AtomicLong started = Metrics.counter("prefetch.requests");
+
+    /** Number of prefetches cancelled because their rows were scrolled past. */
+    private static final AtomicLong cancelled = Metrics.counter("prefetch.cancelled");
+
+    /** Loader for the prefetches. */
+    private final ImageLoader imageLoader;
+
+    /** The rows' products (the adapter's backing array). */
+    private final ProductInfoArrayList pial;
+
+    /** Prefetches not known to be done, by row. */
+    private final HashMap<Integer, ImageLoader.Request> prefetches = new HashMap<>();
+
+    /** First and last visible rows. */
+    private int firstVisible = 0;
+    private int lastVisible = -1;
+
+    /** Direction of the latest scroll. */
+    private boolean scrollingDown = true;
+
+    /** Smoothed scrolling speed, in pixels per millisecond. */
+    private float speed = 0;
+
+    /** Time of the latest scroll (SystemClock.uptimeMillis()). */
+    private long lastScrollTime = 0;
+
+    /** Height of a row, in pixels; 0 until the list has been laid out. */
+    private int rowHeight = 0;
+
+    /** Size bucket of the rows' images; 0 until the list has been laid out. */
+    private int bucket = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param a     the current Activity.
+     * @param _pial the adapter's backing array.
+     */
+    ImagePrefetcher(Activity a, ProductInfoArrayList _pial) {
+        imageLoader = new ImageLoader(a);
+        pial = _pial;
+    }
+
+    /**
+     * Called when the list has been scrolled (or laid out, in which case dy is 0).
+     *
+     * @param rv the RecyclerView.
+     * @param dy the vertical distance scrolled in pixels.
+     */
+    void onScrolled(RecyclerView rv, int dy) {
+        LinearLayoutManager llm = (LinearLayoutManager) rv.getLayoutManager();
+        int first = llm.findFirstVisibleItemPosition();
+        int last = llm.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION || rv.getChildCount() == 0)
+            return;
+
+        // Adapter positions include the header row.
+        firstVisible = Math.max(0, first - 1);
+        lastVisible = last - 1;
+
+        long now = SystemClock.uptimeMillis();
+        if (dy != 0) {
+            scrollingDown = dy > 0;
+            long elapsed = Math.max(1, now - lastScrollTime);
+            speed = SPEED_SMOOTHING * Math.abs(dy) / elapsed + (1 - SPEED_SMOOTHING) * speed;
+            lastScrollTime = now;
+        }
+
+        View row = rv.getChildAt(rv.getChildCount() - 1);
+        rowHeight = row.getHeight();
+        ImageView iv = (ImageView) row.findViewById(R.id.pd_product_image);
+        if (iv != null) {
+            bucket = ImageLoader.sizeBucket(iv);
+        }
+
+        update();
+    }
+
+    /** Called when rows have been added to the backing array. */
+    void onDataChanged() {
+        update();
+    }
+
+    /** Called when the list has stopped flinging. */
+    void onSettled() {
+        update();
+    }
+
+    /** Number of rows to prefetch ahead of the visible rows, for the scrolling speed. */
+    private int rowsAhead() {
+        if (rowHeight <= 0)
+            return MIN_AHEAD;
+        return Math.min(MAX_AHEAD, MIN_AHEAD + Math.round(speed * LOOKAHEAD_MS / rowHeight));
+    }
+
+    /** Cancel the prefetches no longer wanted and start the ones now wanted. */
+    private void update() {
+        if (bucket == 0 || ImageLoader.isPaused())
+            return;
+
+        int ahead = rowsAhead();
+        int from, to;
+        if (scrollingDown) {
+            from = lastVisible + 1;
+            to = Math.min(pial.size() - 1, lastVisible + ahead);
+        }
+        else {
+            from = Math.max(0, firstVisible - ahead);
+            to = firstVisible - 1;
+        }
+
+        Iterator<Map.Entry<Integer, ImageLoader.Request>> it = prefetches.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, ImageLoader.Request> e = it.next();
+            int row = e.getKey();
+            if (e.getValue().isDone()) {
+                it.remove();
+            }
+            else if ((row < firstVisible || row > lastVisible) && (row < from || row > to)) {
+                e.getValue().cancel();
+                cancelled.incrementAndGet();
+                it.remove();
+            }
+        }
+
+        /*
+         * Prefetches are run newest first, so start with the farthest row: the nearest
+         * row is then loaded first.
+         */
+        if (scrollingDown) {
+            for (int row = to; row >= from; row--)
+                prefetch(row);
+        }
+        else {
+            for (int row = from; row <= to; row++)
+                prefetch(row);
+        }
+        trace(String.format(Locale.US, "Rows %d-%d visible, %d-%d prefetched (%d pending).",
+                firstVisible, lastVisible, from, to, prefetches.size()));
+    }
+
+    /**
+     * Prefetch a row's image, unless it is already being prefetched.
+     *
+     * @param row the row.
+     */
+    private void prefetch(int row) {
+        if (prefetches.containsKey(row))
+            return;
+        ImageLoader.Request request = imageLoader.prefetch(pial.get(row).getImageUrl(), bucket);
+        if (request != null) {
+            prefetches.put(row, request);
+            started.incrementAndGet();
+        }
+    }
+
+    /**
+     * Tracing method for this class.
+     *
+     * @param msg message to be logged.
+     */
+    private static void trace(String msg) {
+        if (Settings.isAppTraceDetails()) {
+            Support.trc(Settings.isImageLoaderTrace(), "Image Prefetcher", msg);
+        }
+    }
+}
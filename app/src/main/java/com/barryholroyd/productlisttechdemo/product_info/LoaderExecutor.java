@@ -0,0 +1,137 @@
+package com.barryholroyd.productlisttechdemo.product_info;
+
+import android.os.Process;
+
+import com.barryholroyd.productlisttechdemo.metrics.Histogram;
+import com.barryholroyd.productlisttechdemo.metrics.Metrics;
+
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size thread pool for one stage of the image loading pipeline.
+ * <p>
+ * The pool's threads run at background priority, so that they don't compete with the
+ * UI thread. Jobs are run newest first: the rows bound most recently are the ones on
+ * screen, while older jobs are for rows that have probably been scrolled past. Low
+ * priority jobs (prefetches) only run when there are no others waiting.
+ * <p>
+ * The number of queued jobs, the number of jobs running, the time jobs wait in the queue
+ * and the time they take to run are recorded in the metrics registry, under
+ * "pipeline.&lt;stage&gt;".
+ */
+final class LoaderExecutor extends ThreadPoolExecutor
+{
+    /** A unit of work for a stage. */
+    static abstract class Job implements Runnable {
+        /** When the job was queued (System.nanoTime()). */
+        private long queued;
+
+        /** Order in which the job was queued; later jobs run first. */
+        private long sequence;
+
+        /** Whether the job only runs when there are no others waiting. */
+        private boolean lowPriority;
+
+        /** The executor the job was queued on. */
+        private LoaderExecutor executor;
+
+        /** Do the work. */
+        abstract void work();
+
+        @Override
+        public final void run() {
+            executor.latencyWait.recordSince(queued);
+            long start = System.nanoTime();
+            try {
+                work();
+            }
+            finally {
+                executor.latencyRun.recordSince(start);
+            }
+        }
+    }
+
+    /** Source of job sequence numbers. */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** Time jobs spend in the queue. */
+    private final Histogram latencyWait;
+
+    /** Time jobs take to run. */
+    private final Histogram latencyRun;
+
+    /**
+     * Constructor.
+     *
+     * @param stage   name of the stage, used for the threads' names and the metrics.
+     * @param threads number of threads.
+     */
+    LoaderExecutor(final String stage, int threads) {
+        super(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(11, NEWEST_FIRST),
+                new BackgroundThreadFactory(stage));
+        latencyWait = Metrics.histogram("pipeline." + stage + ".wait");
+        latencyRun  = Metrics.histogram("pipeline." + stage + ".run");
+        Metrics.register("pipeline." + stage + ".queue", new Metrics.Gauge() {
+            public long value() { return getQueue().size(); }
+        });
+        Metrics.register("pipeline." + stage + ".active", new Metrics.Gauge() {
+            public long value() { return getActiveCount(); }
+        });
+    }
+
+    /**
+     * Queue a job.
+     *
+     * @param job         the job.
+     * @param lowPriority whether the job only runs when there are no others waiting.
+     */
+    void enqueue(Job job, boolean lowPriority) {
+        job.executor = this;
+        job.queued = System.nanoTime();
+        job.sequence = sequence.incrementAndGet();
+        job.lowPriority = lowPriority;
+        execute(job);
+    }
+
+    /** Queue order: normal priority jobs before low priority ones, and newest first. */
+    private static final Comparator<Runnable> NEWEST_FIRST = new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable r1, Runnable r2) {
+            Job j1 = (Job) r1;
+            Job j2 = (Job) r2;
+            if (j1.lowPriority != j2.lowPriority)
+                return j1.lowPriority ? 1 : -1;
+            return j1.sequence > j2.sequence ? -1 : j1.sequence < j2.sequence ? 1 : 0;
+        }
+    };
+
+    /** Creates the pool's threads: named after the stage, daemon, background priority. */
+    private static final class BackgroundThreadFactory implements ThreadFactory {
+        private final String stage;
+        private final AtomicInteger count = new AtomicInteger();
+
+        BackgroundThreadFactory(String _stage) {
+            stage = _stage;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, String.format("Loader-%s-%d", stage, count.incrementAndGet()));
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -35,6 +35,10 @@ import android.support.v7.widget.RecyclerView;
  * <p>
  * Algorithm: When {@code lastVisibleRow + triggerDistance > lastLoadedRow},
  * load batchSize more rows from the cloud into the adapter.
+ * <p>
+ * The images for the rows about to be displayed are prefetched as well (see
+ * ImagePrefetcher), which needs to follow every scroll. While the list is flinging,
+ * image loading is paused (see ImageLoader.pause()).
  *
  * @author Barry Holroyd
  */
@@ -60,6 +64,29 @@ public class ProductListOnScrollListener extends RecyclerView.OnScrollListener
 		a = _a;
 	}
 
+	/**
+	 * Standard onScrollStateChanged() callback for RecyclerView.
+	 * <p>
+	 *     Pause image loading while the list is flinging (settling without the user's
+	 *     finger on it), and resume it, for the rows then visible, when it stops.
+	 *
+	 * @param recyclerView the RecyclerView whose scroll state has changed.
+	 * @param newState the new scroll state.
+	 */
+	@Override
+	public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+		super.onScrollStateChanged(recyclerView, newState);
+
+		if (newState == RecyclerView.SCROLL_STATE_SETTLING) {
+			ImageLoader.pause();
+		}
+		else if (ImageLoader.isPaused()) {
+			ImageLoader.resume();
+			((ProductListRecyclerAdapter) recyclerView.getAdapter())
+					.getImagePrefetcher().onSettled();
+		}
+	}
+
 	/**
      * Standard onScrolled() callback for RecylerView.
      * <p>
@@ -79,6 +106,9 @@ public class ProductListOnScrollListener extends RecyclerView.OnScrollListener
 	public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
 		super.onScrolled(recyclerView, dx, dy);
 
+		((ProductListRecyclerAdapter) recyclerView.getAdapter())
+				.getImagePrefetcher().onScrolled(recyclerView, dy);
+
         if (GetProducts.instance.areAllItemsRead()) {
 			return;
 		}
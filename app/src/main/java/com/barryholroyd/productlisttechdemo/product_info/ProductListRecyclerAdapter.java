@@ -24,9 +24,6 @@ import java.util.Locale;
 
 /**
  * Recycler adapter to display the list of products.
- * <p>
- * For demonstration purposes I've implemented both Threads-based and an AsyncTask-based
- * approaches for loading images.
  *
  * @author Barry Holroyd
  */
@@ -38,8 +35,9 @@ public class ProductListRecyclerAdapter
 
     public ProductListRecyclerAdapter(Activity _a) {
         a = _a;
-        ActivityProductList.trace(String.format("Approach for loading images in the background: %s.",
-				Settings.isAppUseThreads() ? "Threads" : "AsyncTask"));
+        imagePrefetcher = new ImagePrefetcher(a, pial);
+        // A new list isn't flinging (the previous one may have been, e.g., before a rotation).
+        ImageLoader.resume();
         ActivityProductList.trace(String.format("Memory caching: %s.", Settings.isMemoryCacheOn() ? "ON" : "OFF"));
         ActivityProductList.trace(String.format("Disk caching: %s.",   Settings.isDiskCacheOn() ? "ON" : "OFF"));
     }
@@ -67,6 +65,9 @@ public class ProductListRecyclerAdapter
 	 */
 	private final HashMap<Integer,ProductInfo> pihm = new HashMap<>();
 
+	/** Prefetches the images for the rows about to be displayed. */
+	private final ImagePrefetcher imagePrefetcher;
+
 	/**
 	 * Getter for the backing array list. Needed for bundling/unbundling across
 	 * device configuration changes.
@@ -75,6 +76,9 @@ public class ProductListRecyclerAdapter
 	 */
 	public ProductInfoArrayList getProductInfoArrayList() { return pial; }
 
+	/** Getter for the image prefetcher, which follows the scrolling of the list. */
+	ImagePrefetcher getImagePrefetcher() { return imagePrefetcher; }
+
 	/**
 	 * Create a ViewHolder to contain a View for each row, inflated from an XML layout file.
 	 *
@@ -119,6 +123,17 @@ public class ProductListRecyclerAdapter
 		}
 	}
 
+	/**
+	 * Cancel the image load for a row that has been scrolled off the screen; it won't
+	 * be displayed, and the row will load its next image when it is rebound.
+	 *
+	 * @param viewHolder the ViewHolder being recycled.
+	 */
+	@Override
+	public void onViewRecycled(ProductListViewHolder viewHolder) {
+		ImageLoader.cancel(viewHolder.ivProductImage);
+	}
+
 	@Override
 	public int getItemViewType(int position) {
 		if (position == 0)
@@ -148,6 +163,7 @@ public class ProductListRecyclerAdapter
 			pihm.put(pi.getId(), pi);
 		}
 		notifyDataSetChanged();
+		imagePrefetcher.onDataChanged();
 	}
 
     /**
@@ -207,7 +223,7 @@ public class ProductListRecyclerAdapter
 		 * Binds column names to the header row.
 		 */
 		void bindHeader() {
-            ivProductImage.setImageBitmap(ImageLoader.getBlankImageBitmap());
+            ImageLoader.setImageBitmap(ivProductImage, ImageLoader.getBlankImageBitmap());
 			formatHeaderField(tvName, "Name");
 			formatHeaderField(tvShortDescription, "Description");
 		}
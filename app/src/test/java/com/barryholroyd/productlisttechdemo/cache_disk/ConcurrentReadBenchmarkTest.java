@@ -0,0 +1,148 @@
+package com.barryholroyd.productlisttechdemo.cache_disk;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertNull;
+
+/**
+ * Benchmark of concurrent disk cache reads while images are being written.
+ * <p>
+ * Several loader threads read cached images while a writer thread keeps adding new
+ * ones, in two ways:
+ * <ul>
+ *     <li>serialized: every read and write holds one cache-wide lock, as the disk
+ *         cache's synchronized get() and add() used to;</li>
+ *     <li>concurrent: no lock is shared by reads and writes, as in CacheDiskImage now
+ *         (a write only locks its own key, and the writer only adds new keys here).</li>
+ * </ul>
+ * Each way is its own test, doing the same number of reads, so the test report gives
+ * their times; the benchmark only fails if a read returns the wrong image. CacheDiskImage
+ * itself needs an Activity for its directory, so the locking is reproduced around the
+ * store it uses.
+ * <p>
+ * Benchmarks are left out of the normal test run; run them with
+ * <code>gradlew test -Pbenchmarks</code>.
+ */
+public class ConcurrentReadBenchmarkTest
+{
+    /** Number of reader threads. */
+    private static final int READERS = 8;
+
+    /** Number of images cached before the benchmark starts. */
+    private static final int IMAGES = 500;
+
+    /** Size of each image. */
+    private static final int IMAGE_SIZE = 16 * 1024;
+
+    /** Number of reads each reader makes. */
+    private static final int READS = 5000;
+
+    @Test
+    public void serializedReads() throws Exception {
+        run(new Object());
+    }
+
+    @Test
+    public void concurrentReads() throws Exception {
+        run(null);
+    }
+
+    /**
+     * Cache IMAGES images, then run the readers, with the writer adding new images
+     * until they have finished.
+     *
+     * @param cacheLock lock held around every read and write; null for none.
+     */
+    private static void run(final Object cacheLock) throws IOException, InterruptedException {
+        File dir = Files.createTempDirectory("readbench").toFile();
+        final DiskStore store = new FileStore(dir);
+        try {
+            for (int i = 0; i < IMAGES; i++) {
+                store.write(DiskStoreTest.name(i), DiskStoreTest.image(i, IMAGE_SIZE));
+            }
+            run(store, cacheLock);
+        }
+        finally {
+            store.close();
+            CacheDiskImage.deleteTree(dir);
+        }
+    }
+
+    /**
+     * Run the readers and the writer.
+     *
+     * @param store     the store.
+     * @param cacheLock lock held around every read and write; null for none.
+     */
+    private static void run(final DiskStore store, final Object cacheLock)
+            throws InterruptedException {
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+
+        for (int r = 0; r < READERS; r++) {
+            final Random random = new Random(r);
+            readers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < READS; n++) {
+                        int i = random.nextInt(IMAGES);
+                        byte[] data;
+                        if (cacheLock != null) {
+                            synchronized (cacheLock) {
+                                data = store.read(DiskStoreTest.name(i));
+                            }
+                        }
+                        else {
+                            data = store.read(DiskStoreTest.name(i));
+                        }
+                        if (data == null || data.length != IMAGE_SIZE) {
+                            failure.compareAndSet(null, "bad read: " + i);
+                        }
+                    }
+                }
+            }));
+        }
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] data = DiskStoreTest.image(IMAGES, IMAGE_SIZE);
+                for (int i = IMAGES; !done.get(); i++) {
+                    try {
+                        if (cacheLock != null) {
+                            synchronized (cacheLock) {
+                                store.write(DiskStoreTest.name(i), data);
+                            }
+                        }
+                        else {
+                            store.write(DiskStoreTest.name(i), data);
+                        }
+                    }
+                    catch (IOException ioe) {
+                        failure.compareAndSet(null, ioe.getMessage());
+                    }
+                }
+            }
+        });
+
+        writer.start();
+        for (Thread t : readers) {
+            t.start();
+        }
+        for (Thread t : readers) {
+            t.join();
+        }
+        done.set(true);
+        writer.join();
+        assertNull(failure.get(), failure.get());
+    }
+}
@@ -0,0 +1,105 @@
+package com.barryholroyd.productlisttechdemo.cache_disk;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Benchmark of the two disk cache storage engines, FileStore (one file per image) and
+ * PackStore (images appended to segment files), on the same workload:
+ * <ol>
+ *     <li>write IMAGES thumbnails;
+ *     <li>read them all back, in random order;
+ *     <li>evict half of them, as the LRU eviction would;
+ *     <li>reopen the store and drop unindexed images, as at startup.
+ * </ol>
+ * Each engine is its own test, so the test report gives its time; the benchmark only
+ * fails if an image is lost. Timings on a desktop JVM only indicate the relative cost
+ * of the two layouts; the difference in per-file metadata work is larger on a phone's
+ * flash storage.
+ * <p>
+ * Benchmarks are left out of the normal test run; run them with
+ * <code>gradlew test -Pbenchmarks</code>.
+ */
+public class DiskStoreBenchmarkTest
+{
+    /** Number of images. */
+    private static final int IMAGES = 3000;
+
+    /** Size of each image (a typical thumbnail). */
+    private static final int IMAGE_SIZE = 8 * 1024;
+
+    @Test
+    public void fileStore() throws IOException {
+        run(new Opener() {
+            public DiskStore open(File dir) { return new FileStore(dir); }
+        });
+    }
+
+    @Test
+    public void packStore() throws IOException {
+        run(new Opener() {
+            public DiskStore open(File dir) { return new PackStore(dir); }
+        });
+    }
+
+    /** Opens the engine being measured. */
+    private interface Opener {
+        DiskStore open(File dir);
+    }
+
+    /**
+     * Run the workload against one engine.
+     *
+     * @param opener opens the engine.
+     */
+    private static void run(Opener opener) throws IOException {
+        File dir = Files.createTempDirectory("diskbench").toFile();
+        try {
+            DiskStore store = opener.open(dir);
+            byte[] data = DiskStoreTest.image(0, IMAGE_SIZE);
+            for (int i = 0; i < IMAGES; i++) {
+                store.write(DiskStoreTest.name(i), data);
+            }
+
+            Random random = new Random(1);
+            for (int i = 0; i < IMAGES; i++) {
+                assertNotNull(store.read(DiskStoreTest.name(random.nextInt(IMAGES))));
+            }
+
+            Set<String> kept = new HashSet<>();
+            for (int i = 0; i < IMAGES; i++) {
+                if (i % 2 == 0) {
+                    store.delete(DiskStoreTest.name(i));
+                }
+                else {
+                    kept.add(DiskStoreTest.name(i));
+                }
+            }
+            store.maintain();
+            store.close();
+
+            store = opener.open(dir);
+            try {
+                store.retainOnly(kept);
+                for (String name : kept) {
+                    assertEquals(IMAGE_SIZE, store.size(name));
+                }
+            }
+            finally {
+                store.close();
+            }
+        }
+        finally {
+            CacheDiskImage.deleteTree(dir);
+        }
+    }
+}
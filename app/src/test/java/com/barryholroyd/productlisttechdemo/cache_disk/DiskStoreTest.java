@@ -0,0 +1,140 @@
+package com.barryholroyd.productlisttechdemo.cache_disk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests of the DiskStore contract, run against each storage engine (see FileStoreTest
+ * and PackStoreTest). Runs on the JVM, in a temporary directory.
+ */
+public abstract class DiskStoreTest
+{
+    /** The cache directory. */
+    protected File dir;
+
+    /** The store under test. */
+    protected DiskStore store;
+
+    /**
+     * Open a store on a directory.
+     *
+     * @param dir the cache directory (which exists).
+     * @return the store.
+     */
+    protected abstract DiskStore open(File dir);
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("diskstore").toFile();
+        store = open(dir);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+        CacheDiskImage.deleteTree(dir);
+    }
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        byte[] data = image(1, 5000);
+        store.write(name(1), data);
+        assertArrayEquals(data, store.read(name(1)));
+        assertEquals(data.length, store.size(name(1)));
+    }
+
+    @Test
+    public void missingImageIsAMiss() {
+        assertNull(store.read(name(1)));
+        assertEquals(-1, store.size(name(1)));
+    }
+
+    @Test
+    public void rewriteReplacesTheImage() throws IOException {
+        store.write(name(1), image(1, 100));
+        byte[] data = image(2, 300);
+        store.write(name(1), data);
+        assertArrayEquals(data, store.read(name(1)));
+        assertEquals(data.length, store.size(name(1)));
+    }
+
+    @Test
+    public void deletedImageIsAMiss() throws IOException {
+        store.write(name(1), image(1, 100));
+        store.write(name(2), image(2, 100));
+        store.delete(name(1));
+        assertNull(store.read(name(1)));
+        assertEquals(-1, store.size(name(1)));
+        assertArrayEquals(image(2, 100), store.read(name(2)));
+    }
+
+    @Test
+    public void retainOnlyKeepsTheNamedImages() throws IOException {
+        for (int i = 0; i < 10; i++) {
+            store.write(name(i), image(i, 200));
+        }
+        store.retainOnly(new HashSet<>(Arrays.asList(name(3), name(7))));
+        for (int i = 0; i < 10; i++) {
+            if (i == 3 || i == 7) {
+                assertArrayEquals(image(i, 200), store.read(name(i)));
+            }
+            else {
+                assertNull("not retained: " + i, store.read(name(i)));
+            }
+        }
+    }
+
+    @Test
+    public void imagesSurviveReopening() throws IOException {
+        for (int i = 0; i < 50; i++) {
+            store.write(name(i), image(i, 1000 + i));
+        }
+        store.delete(name(10));
+        store.close();
+        store = open(dir);
+        for (int i = 0; i < 50; i++) {
+            if (i == 10) {
+                assertNull(store.read(name(i)));
+            }
+            else {
+                assertArrayEquals(image(i, 1000 + i), store.read(name(i)));
+            }
+        }
+    }
+
+    /**
+     * A name like those made by CacheDiskImage.nameFor(): a SHA-1 hash in hex.
+     *
+     * @param i which name.
+     * @return the name.
+     */
+    static String name(int i) {
+        return String.format(Locale.US, "%08x%032x", i * 0x9e3779b1, i);
+    }
+
+    /**
+     * Image bytes that differ from image to image.
+     *
+     * @param seed   which image.
+     * @param length its length.
+     * @return the bytes.
+     */
+    static byte[] image(int seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,26 @@
+package com.barryholroyd.productlisttechdemo.cache_disk;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DiskStore tests for the file-per-image engine.
+ */
+public class FileStoreTest extends DiskStoreTest
+{
+    @Override
+    protected DiskStore open(File dir) {
+        return new FileStore(dir);
+    }
+
+    @Test
+    public void imagesAreShardedByName() throws IOException {
+        store.write(name(1), image(1, 10));
+        File shard = new File(dir, name(1).substring(0, 2));
+        assertTrue(new File(shard, name(1)).isFile());
+    }
+}
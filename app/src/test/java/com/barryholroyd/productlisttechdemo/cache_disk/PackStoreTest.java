@@ -0,0 +1,102 @@
+package com.barryholroyd.productlisttechdemo.cache_disk;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DiskStore tests for the pack-file engine, plus its segment compaction.
+ */
+public class PackStoreTest extends DiskStoreTest
+{
+    @Override
+    protected DiskStore open(File dir) {
+        return new PackStore(dir);
+    }
+
+    @Test
+    public void compactionReclaimsDeletedImages() throws IOException {
+        // About 3 segments of 8 MB.
+        int count = 100;
+        int length = 256 * 1024;
+        for (int i = 0; i < count; i++) {
+            store.write(name(i), image(i, length));
+        }
+        PackStore pack = (PackStore) store;
+        int segments = pack.getSegmentCount();
+        assertTrue("expected several segments, got " + segments, segments >= 3);
+
+        // Keep one image in ten, then compact until nothing is left to do.
+        for (int i = 0; i < count; i++) {
+            if (i % 10 != 0) {
+                store.delete(name(i));
+            }
+        }
+        for (int i = 0; i < segments; i++) {
+            store.maintain();
+        }
+
+        assertTrue("segments not compacted", pack.getSegmentCount() < segments);
+        assertTrue("dead bytes left: " + pack.getDeadBytes(),
+                pack.getDeadBytes() < 8 * 1024 * 1024);
+        for (int i = 0; i < count; i++) {
+            if (i % 10 == 0) {
+                assertArrayEquals("lost in compaction: " + i, image(i, length), store.read(name(i)));
+            }
+            else {
+                assertNull("came back: " + i, store.read(name(i)));
+            }
+        }
+    }
+
+    @Test
+    public void indexGrowsPastItsInitialCapacity() throws IOException {
+        int count = 5000;
+        for (int i = 0; i < count; i++) {
+            store.write(name(i), image(i, 16));
+        }
+        store.close();
+        store = open(dir);
+        for (int i = 0; i < count; i++) {
+            assertEquals(16, store.size(name(i)));
+        }
+        assertArrayEquals(image(4321, 16), store.read(name(4321)));
+    }
+
+    @Test
+    public void readsRunWhileImagesAreWritten() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            store.write(name(i), image(i, 4096));
+        }
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int i = 0;
+                while (!done.get()) {
+                    int n = i++ % 100;
+                    byte[] data = store.read(name(n));
+                    if (data == null || data.length != 4096 || data[0] != image(n, 4096)[0]) {
+                        failure.compareAndSet(null, "bad read: " + n);
+                    }
+                }
+            }
+        });
+        reader.start();
+        for (int i = 100; i < 2000; i++) {
+            store.write(name(i), image(i, 4096));
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure.get(), failure.get());
+    }
+}
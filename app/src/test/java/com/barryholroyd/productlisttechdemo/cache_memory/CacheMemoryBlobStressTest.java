@@ -0,0 +1,208 @@
+package com.barryholroyd.productlisttechdemo.cache_memory;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Multi-threaded stress test for CacheMemoryBlob.
+ * <p>
+ * Worker threads run random get(), getAndRetain(), add(), remove() and resize() calls
+ * against one cache for a number of rounds. Between rounds, once every worker has stopped,
+ * the cache's accounting is checked: its current size must be the sum of the sizes of the
+ * entries it holds, and no larger than its maximum size. Throughout, no value may be
+ * retained after it has been evicted.
+ */
+public class CacheMemoryBlobStressTest
+{
+    /** Number of worker threads. */
+    private static final int THREADS = 8;
+
+    /** Number of rounds; the accounting is checked after each one. */
+    private static final int ROUNDS = 20;
+
+    /** Operations per worker per round. */
+    private static final int OPS_PER_ROUND = 20000;
+
+    /** Number of distinct keys; small enough that workers often hit the same keys. */
+    private static final int KEYS = 2000;
+
+    /** Largest value, in bytes. */
+    private static final int MAX_VALUE_SIZE = 1000;
+
+    /** Smallest and largest maximum cache sizes used by resize(). */
+    private static final long MIN_CACHE_SIZE = 20000;
+    private static final long MAX_CACHE_SIZE = 200000;
+
+    /** Cache sized by the length of its values, which checks retains against evictions. */
+    private static final class ByteCache extends CacheMemoryBlob<Integer, byte[]> {
+        /** Values handed to entryRemoved(). */
+        private final Set<byte[]> evicted =
+                Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+
+        ByteCache(long bytes, int concurrencyLevel) {
+            super(bytes, concurrencyLevel);
+        }
+
+        @Override
+        protected long sizeOf(Integer key, byte[] val) {
+            return val.length;
+        }
+
+        @Override
+        protected void entryRemoved(Integer key, byte[] val) {
+            synchronized (evicted) {
+                evicted.add(val);
+            }
+        }
+
+        @Override
+        protected void entryRetained(Integer key, byte[] val) {
+            synchronized (evicted) {
+                assertFalse("retained after eviction: " + key, evicted.contains(val));
+            }
+        }
+    }
+
+    @Test
+    public void lruAccountingHoldsUnderContention() throws Exception {
+        stress(CacheMemoryBlob.AdmissionPolicy.LRU, 16);
+    }
+
+    @Test
+    public void tinyLfuAccountingHoldsUnderContention() throws Exception {
+        stress(CacheMemoryBlob.AdmissionPolicy.TINY_LFU, 16);
+    }
+
+    @Test
+    public void singleSegmentAccountingHoldsUnderContention() throws Exception {
+        stress(CacheMemoryBlob.AdmissionPolicy.LRU, 1);
+    }
+
+    /**
+     * Run the workers and check the cache's accounting after each round.
+     *
+     * @param policy           admission policy of the cache.
+     * @param concurrencyLevel number of segments of the cache.
+     */
+    private void stress(CacheMemoryBlob.AdmissionPolicy policy, int concurrencyLevel)
+            throws Exception {
+        final ByteCache cache = new ByteCache(MAX_CACHE_SIZE / 2, concurrencyLevel);
+        cache.setAdmissionPolicy(policy);
+        cache.setWatermarks(90, 70);
+
+        final CyclicBarrier start = new CyclicBarrier(THREADS + 1);
+        final CyclicBarrier end = new CyclicBarrier(THREADS + 1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        for (int round = 0; round < ROUNDS; round++) {
+                            start.await();
+                            try {
+                                for (int i = 0; i < OPS_PER_ROUND; i++) {
+                                    operate(cache, random);
+                                }
+                            }
+                            catch (RuntimeException | Error e) {
+                                failure.compareAndSet(null, e);
+                            }
+                            end.await();
+                        }
+                    }
+                    catch (InterruptedException | BrokenBarrierException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }, "Stress-" + t);
+            worker.start();
+            workers.add(worker);
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            start.await();
+            end.await();
+            assertNull("worker failed: " + failure.get(), failure.get());
+            checkAccounting(cache, round);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertTrue("cache never evicted anything", cache.getEvictions() > 0);
+    }
+
+    /**
+     * Run one random operation: mostly lookups and adds, as when loading images.
+     *
+     * @param cache  the cache.
+     * @param random source of the operation and its arguments.
+     */
+    private static void operate(ByteCache cache, Random random) {
+        Integer key = random.nextInt(KEYS);
+        int op = random.nextInt(100);
+        if (op < 50) {
+            byte[] val = op < 25 ? cache.get(key) : cache.getAndRetain(key);
+            if (val != null) {
+                assertEquals("value belongs to another key", sizeFor(key), val.length);
+            }
+        }
+        else if (op < 90) {
+            cache.add(key, new byte[sizeFor(key)]);
+        }
+        else if (op < 99) {
+            cache.remove(key);
+        }
+        else {
+            cache.resize(MIN_CACHE_SIZE + (long) (random.nextDouble() * (MAX_CACHE_SIZE - MIN_CACHE_SIZE)));
+        }
+    }
+
+    /** Size of a key's value; fixed per key, so that a wrong value is detected. */
+    private static int sizeFor(int key) {
+        return 1 + (key * 7919) % MAX_VALUE_SIZE;
+    }
+
+    /**
+     * Check the cache's accounting while no worker is running.
+     *
+     * @param cache the cache.
+     * @param round the round just finished.
+     */
+    private static void checkAccounting(ByteCache cache, int round) {
+        long sum = 0;
+        int entries = 0;
+        for (int key = 0; key < KEYS; key++) {
+            if (cache.contains(key)) {
+                sum += sizeFor(key);
+                entries++;
+            }
+        }
+        String where = String.format("round %d: ", round);
+        assertEquals(where + "current size is not the sum of the entries' sizes",
+                sum, cache.getCurrentSize());
+        assertEquals(where + "entry count", entries, cache.getEntryCount());
+        assertTrue(where + String.format("current size %d exceeds maximum %d",
+                        cache.getCurrentSize(), cache.getMaxSize()),
+                cache.getCurrentSize() <= cache.getMaxSize());
+        assertTrue(where + "peak size below current size",
+                cache.getPeakSize() >= cache.getCurrentSize());
+    }
+}
@@ -0,0 +1,388 @@
+package com.barryholroyd.productlisttechdemo.network;
+
+import android.graphics.Bitmap;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the NetworkSupport download path, against a local HTTP server.
+ * <p>
+ * The server counts the requests for each image, so that each download can be checked
+ * to have fetched its image exactly once. Decoding is done by a test decoder (the Android
+ * BitmapFactory isn't available here), which records what it was handed and, having no
+ * Bitmap to return, fails the decode.
+ */
+public class NetworkSupportTest
+{
+    /** Image sizes: smaller than, larger than and much larger than the initial buffer. */
+    private static final int[] SIZES = { 100, 64 * 1024, 200 * 1024, 3 * 1024 * 1024 };
+
+    /** Bytes sent by the slow image before it stalls (until the test is over). */
+    private static final int SLOW_PREFIX = 1000;
+
+    private HttpServer server;
+    private String base;
+
+    /** Number of requests, by path. */
+    private final ConcurrentHashMap<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+
+    /** Released to let the slow and stalled images finish. */
+    private final CountDownLatch unstall = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/image/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                count(path);
+                int size = Integer.parseInt(path.substring(path.lastIndexOf('/') + 1));
+                exchange.sendResponseHeaders(200, size);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(image(size));
+                }
+            }
+        });
+        server.createContext("/slow", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                count(exchange.getRequestURI().getPath());
+                /*
+                 * Chunked: the JDK's HttpURLConnection.disconnect() then closes the
+                 * socket (as Android's does), rather than waiting to drain the response.
+                 */
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(image(SLOW_PREFIX));
+                    os.flush();
+                    unstall.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException | IOException e) {
+                    // The client has gone.
+                }
+            }
+        });
+        server.createContext("/stalled", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                count(exchange.getRequestURI().getPath());
+                try {
+                    unstall.await(10, TimeUnit.SECONDS);
+                    exchange.sendResponseHeaders(200, SLOW_PREFIX);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(image(SLOW_PREFIX));
+                    }
+                }
+                catch (InterruptedException | IOException e) {
+                    // The client has gone.
+                }
+            }
+        });
+        server.createContext("/missing", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                count(exchange.getRequestURI().getPath());
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        base = String.format("http://127.0.0.1:%d", server.getAddress().getPort());
+    }
+
+    @After
+    public void tearDown() {
+        unstall.countDown();
+        server.stop(0);
+    }
+
+    @Test
+    public void eachImageIsRequestedOnce() throws Exception {
+        for (int size : SIZES) {
+            NetworkSupport.Download d = NetworkSupport.download(url(size), new Cancellation());
+            try {
+                assertEquals(size, d.size());
+            }
+            finally {
+                d.release();
+            }
+        }
+        for (int size : SIZES) {
+            assertEquals("requests for " + size, 1, requests(path(size)));
+        }
+    }
+
+    @Test
+    public void concurrentDownloadsRequestEachImageOnce() throws Exception {
+        final int images = 64;
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> sizes = new ArrayList<>();
+            for (int i = 0; i < images; i++) {
+                final int size = 1000 + i * 4000;
+                sizes.add(pool.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        NetworkSupport.Download d = NetworkSupport.download(url(size), null);
+                        try {
+                            return d.size();
+                        }
+                        finally {
+                            d.release();
+                        }
+                    }
+                }));
+            }
+            for (int i = 0; i < images; i++) {
+                int size = 1000 + i * 4000;
+                assertEquals(size, (int) sizes.get(i).get(30, TimeUnit.SECONDS));
+                assertEquals("requests for " + size, 1, requests(path(size)));
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void cancelledDownloadMakesNoRequest() {
+        Cancellation cancel = new Cancellation();
+        assertFalse(cancel.cancel());
+        try {
+            NetworkSupport.download(url(SIZES[0]), cancel);
+            fail("cancelled download succeeded");
+        }
+        catch (NetworkSupportException expected) {
+            // Expected.
+        }
+        assertEquals(0, requests(path(SIZES[0])));
+    }
+
+    @Test
+    public void cancelDoesNotWaitForTheDisconnect() throws Exception {
+        Cancellation cancel = new Cancellation();
+        DownloadThread downloader = new DownloadThread("/slow", cancel);
+        downloader.start();
+        awaitRequest("/slow");
+        Thread.sleep(100);
+
+        /*
+         * The downloader is blocked reading the response body. The JDK's disconnect()
+         * then waits for the read to finish (its chunked stream's read() and close()
+         * hold the same lock), which would stall a main thread calling cancel().
+         */
+        long start = System.nanoTime();
+        assertTrue(cancel.cancel());
+        assertTrue("cancel() blocked",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+
+        unstall.countDown();
+        assertTrue("download never finished", downloader.done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, requests("/slow"));
+    }
+
+    @Test
+    public void cancelAbortsADownloadWaitingForTheResponse() throws Exception {
+        Cancellation cancel = new Cancellation();
+        DownloadThread downloader = new DownloadThread("/stalled", cancel);
+        downloader.start();
+        awaitRequest("/stalled");
+        Thread.sleep(100);
+
+        assertTrue(cancel.cancel());
+        assertTrue("download not aborted", downloader.done.await(5, TimeUnit.SECONDS));
+        assertTrue("download succeeded after cancel()", downloader.failed);
+        assertEquals(1, requests("/stalled"));
+    }
+
+    @Test
+    public void imageIsDecodedInPlaceAndItsBufferReused() throws Exception {
+        RecordingDecoder decoder = new RecordingDecoder();
+        NetworkSupport.Download d = NetworkSupport.download(url(5000), null);
+        try {
+            d.decode(100, 100, true, decoder);
+            fail("decode without a bitmap succeeded");
+        }
+        catch (NetworkSupportException expected) {
+            // Expected: the test decoder has no bitmap to return.
+        }
+        finally {
+            d.release();
+        }
+        assertEquals(5000, decoder.length);
+        assertEquals(100, decoder.requestedHeight);
+        assertArrayEquals(image(5000), Arrays.copyOf(decoder.data, decoder.length));
+        byte[] first = decoder.data;
+
+        // The released buffer is reused for the next download.
+        d = NetworkSupport.download(url(3000), null);
+        try {
+            d.decode(100, 100, false, decoder);
+            fail("decode without a bitmap succeeded");
+        }
+        catch (NetworkSupportException expected) {
+            // Expected.
+        }
+        finally {
+            d.release();
+        }
+        assertSame("buffer not reused", first, decoder.data);
+        assertEquals(3000, decoder.length);
+        assertArrayEquals(image(3000), Arrays.copyOf(decoder.data, decoder.length));
+        assertEquals(1, requests(path(5000)));
+        assertEquals(1, requests(path(3000)));
+    }
+
+    @Test
+    public void largestImageIsDownloaded() throws Exception {
+        NetworkSupport.Download d =
+                NetworkSupport.download(url(NetworkSupport.MAX_IMAGE_SIZE), null);
+        try {
+            assertEquals(NetworkSupport.MAX_IMAGE_SIZE, d.size());
+        }
+        finally {
+            d.release();
+        }
+    }
+
+    @Test
+    public void oversizedImageFails() {
+        try {
+            NetworkSupport.download(url(NetworkSupport.MAX_IMAGE_SIZE + 1), null).release();
+            fail("oversized image was downloaded");
+        }
+        catch (NetworkSupportException expected) {
+            // Expected.
+        }
+        assertEquals(1, requests(path(NetworkSupport.MAX_IMAGE_SIZE + 1)));
+    }
+
+    @Test
+    public void badResponseFails() {
+        try {
+            NetworkSupport.download(base + "/missing", null);
+            fail("download of a missing image succeeded");
+        }
+        catch (NetworkSupportException expected) {
+            // Expected.
+        }
+        assertEquals(1, requests("/missing"));
+    }
+
+    /** Records what it is asked to decode; returns no bitmap. */
+    private static final class RecordingDecoder implements NetworkSupport.Decoder
+    {
+        byte[] data;
+        int length;
+        int requestedHeight;
+
+        @Override
+        public Bitmap decode(byte[] _data, int _length, int _requestedHeight, int _requestedWidth) {
+            data = _data;
+            length = _length;
+            requestedHeight = _requestedHeight;
+            return null;
+        }
+    }
+
+    /** Runs a download, recording whether it failed. */
+    private final class DownloadThread extends Thread
+    {
+        private final String path;
+        private final Cancellation cancel;
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean failed = false;
+
+        DownloadThread(String _path, Cancellation _cancel) {
+            path = _path;
+            cancel = _cancel;
+        }
+
+        @Override
+        public void run() {
+            try {
+                NetworkSupport.download(base + path, cancel).release();
+            }
+            catch (NetworkSupportException e) {
+                failed = true;
+            }
+            done.countDown();
+        }
+    }
+
+    /** Wait for the server to have received a request for a path. */
+    private void awaitRequest(String path) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (requests(path) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    /** Path of the image of a given size. */
+    private static String path(int size) {
+        return "/image/" + size;
+    }
+
+    /** url of the image of a given size. */
+    private String url(int size) {
+        return base + path(size);
+    }
+
+    /** Count a request. */
+    private void count(String path) {
+        AtomicInteger n = requests.get(path);
+        if (n == null) {
+            AtomicInteger created = new AtomicInteger();
+            n = requests.putIfAbsent(path, created);
+            if (n == null)
+                n = created;
+        }
+        n.incrementAndGet();
+    }
+
+    /** Number of requests for a path. */
+    private int requests(String path) {
+        AtomicInteger n = requests.get(path);
+        return n == null ? 0 : n.get();
+    }
+
+    /** An image file's contents: arbitrary bytes. */
+    private static byte[] image(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+}